@@ -0,0 +1,102 @@
+package org.jenkinsci.plugins.cors;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+
+/**
+ * <p>Checks that the request shapes on the hot path of
+ * {@link CrossOriginFilter} allocate nothing in the filter itself.</p>
+ *
+ * <p>Each shape is run until the JIT has settled, then measured with
+ * <code>com.sun.management.ThreadMXBean#getThreadAllocatedBytes</code>
+ * over many requests. The stub request and response store everything in
+ * preallocated arrays, so any allocation counted comes from the filter.
+ * What a real container allocates behind them is not measured. That
+ * matters for requests with an Origin header: the filter keeps its
+ * decision on them as request attributes, which a container typically
+ * stores in a map entry per request. Requests without an Origin header
+ * set no attribute at all.
+ * Exits with status 1 if a shape goes over its budget, so it can run as
+ * a regression check after the plugin is installed:</p>
+ *
+ * <pre>
+ *   mvn -f benchmarks/pom.xml package
+ *   java -cp benchmarks/target/benchmarks.jar org.jenkinsci.plugins.cors.AllocationBudget
+ * </pre>
+ */
+public class AllocationBudget
+{
+    private static final int WARMUP = 200000;
+    private static final int MEASURED = 1000000;
+    /** Bytes per request; non-zero only to absorb the few bytes the measurement itself may cost. */
+    private static final double BUDGET = 0.01;
+
+    public static void main(String[] args) throws Exception
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+        {
+            System.err.println("per-thread allocation counters are not available on this JVM");
+            System.exit(2);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        CrossOriginFilter filter = filter();
+        String exact = "https://partner50.example.com";
+        boolean failed = false;
+        failed |= !check(threads, filter, "no Origin header",
+                         new StubHttpServletRequest("GET", "/api/json")
+                             .addHeader("Connection", "keep-alive"));
+        failed |= !check(threads, filter, "simple request, exact origin",
+                         new StubHttpServletRequest("GET", "/api/json")
+                             .addHeader("Connection", "keep-alive")
+                             .addHeader("Origin", exact));
+        failed |= !check(threads, filter, "simple request, wildcard origin",
+                         new StubHttpServletRequest("GET", "/api/json")
+                             .addHeader("Connection", "keep-alive")
+                             .addHeader("Origin", "https://dashboard.apps.example.net"));
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static CrossOriginFilter filter() throws ServletException
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put(CrossOriginFilter.ALLOWED_ORIGINS_PARAM, CrossOriginFilterBenchmark.allowlist(100));
+        CrossOriginFilter filter = new CrossOriginFilter();
+        filter.init(new FilterConfigWrapper("allocation-budget", null, params));
+        return filter;
+    }
+
+    private static boolean check(com.sun.management.ThreadMXBean threads, CrossOriginFilter filter,
+                                 String name, StubHttpServletRequest request) throws Exception
+    {
+        StubHttpServletResponse response = new StubHttpServletResponse();
+        StubFilterChain chain = new StubFilterChain();
+        long thread = Thread.currentThread().getId();
+
+        run(filter, request, response, chain, WARMUP);
+        long before = threads.getThreadAllocatedBytes(thread);
+        run(filter, request, response, chain, MEASURED);
+        long after = threads.getThreadAllocatedBytes(thread);
+
+        double perRequest = (double)(after - before) / MEASURED;
+        boolean ok = perRequest <= BUDGET;
+        System.out.println((ok ? "ok   " : "FAIL ") + name + ": " + perRequest + " bytes/request (budget " + BUDGET + ")");
+        return ok;
+    }
+
+    private static void run(CrossOriginFilter filter, StubHttpServletRequest request,
+                            StubHttpServletResponse response, StubFilterChain chain, int times) throws Exception
+    {
+        for (int i = 0; i < times; ++i)
+        {
+            response.reset();
+            request.clearAttributes();
+            filter.doFilter(request, response, chain);
+        }
+    }
+}
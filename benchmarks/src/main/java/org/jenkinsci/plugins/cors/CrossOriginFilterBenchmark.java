@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmarks {@link CrossOriginFilter#doFilter} for the request shapes
+ * Jenkins sees most, against allowlists of growing size.</p>
+ *
+ * <p>The allowlist holds <code>allowlistSize</code> exact origins plus one
+ * wildcard origin. Run with <code>-prof gc</code> to get the allocation
+ * rate next to throughput and average time.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CrossOriginFilterBenchmark
+{
+    static final String WILDCARD_ORIGIN = "https://*.apps.example.net";
+    static final int CUSTOM_HEADERS = 20;
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int allowlistSize;
+
+    /** Size of both the origin and the preflight cache; 0 measures the uncached paths. */
+    @Param({"1024", "0"})
+    public String cacheSize;
+
+    private CrossOriginFilter filter;
+    private StubHttpServletResponse response;
+    private StubFilterChain chain;
+
+    private StubHttpServletRequest noOrigin;
+    private StubHttpServletRequest exactOrigin;
+    private StubHttpServletRequest wildcardOrigin;
+    private StubHttpServletRequest rejectedOrigin;
+    private StubHttpServletRequest preflightOneHeader;
+    private StubHttpServletRequest preflightManyHeaders;
+    private StubHttpServletRequest webSocketUpgrade;
+
+    @Setup
+    public void setUp() throws ServletException
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put(CrossOriginFilter.ALLOWED_ORIGINS_PARAM, allowlist(allowlistSize));
+        params.put(CrossOriginFilter.ALLOWED_METHODS_PARAM, "GET,POST,HEAD,PUT,DELETE");
+        params.put(CrossOriginFilter.ALLOWED_HEADERS_PARAM, CrossOriginFilter.DEFAULT_ALLOWED_HEADERS + "," + customHeaders(CUSTOM_HEADERS, ","));
+        params.put(CrossOriginFilter.CHAIN_PREFLIGHT_PARAM, "false");
+        params.put(CrossOriginFilter.ORIGIN_CACHE_SIZE_PARAM, cacheSize);
+        params.put(CrossOriginFilter.PREFLIGHT_CACHE_SIZE_PARAM, cacheSize);
+        filter = new CrossOriginFilter();
+        filter.init(new FilterConfigWrapper("benchmark", null, params));
+
+        response = new StubHttpServletResponse();
+        chain = new StubFilterChain();
+
+        String exact = "https://partner" + (allowlistSize / 2) + ".example.com";
+        noOrigin = new StubHttpServletRequest("GET", "/api/json")
+            .addHeader("Connection", "keep-alive");
+        exactOrigin = new StubHttpServletRequest("GET", "/api/json")
+            .addHeader("Connection", "keep-alive")
+            .addHeader("Origin", exact);
+        wildcardOrigin = new StubHttpServletRequest("GET", "/api/json")
+            .addHeader("Connection", "keep-alive")
+            .addHeader("Origin", "https://dashboard.apps.example.net");
+        rejectedOrigin = new StubHttpServletRequest("GET", "/api/json")
+            .addHeader("Connection", "keep-alive")
+            .addHeader("Origin", "https://scraper.example.org");
+        preflightOneHeader = new StubHttpServletRequest("OPTIONS", "/job/test/build")
+            .addHeader("Connection", "keep-alive")
+            .addHeader("Origin", exact)
+            .addHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_METHOD_HEADER, "POST")
+            .addHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_HEADERS_HEADER, customHeaders(1, ", "));
+        preflightManyHeaders = new StubHttpServletRequest("OPTIONS", "/job/test/build")
+            .addHeader("Connection", "keep-alive")
+            .addHeader("Origin", exact)
+            .addHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_METHOD_HEADER, "POST")
+            .addHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_HEADERS_HEADER, customHeaders(CUSTOM_HEADERS, ", "));
+        webSocketUpgrade = new StubHttpServletRequest("GET", "/ws")
+            .addHeader("Connection", "Upgrade")
+            .addHeader("Upgrade", "websocket")
+            .addHeader("Origin", exact);
+    }
+
+    /** @return <code>size</code> exact origins and one wildcard origin, comma-separated */
+    static String allowlist(int size)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; ++i)
+            builder.append("https://partner").append(i).append(".example.com,");
+        return builder.append(WILDCARD_ORIGIN).toString();
+    }
+
+    static String customHeaders(int count, String separator)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i <= count; ++i)
+        {
+            if (i > 1) builder.append(separator);
+            builder.append("X-Custom-Header-").append(i);
+        }
+        return builder.toString();
+    }
+
+    private StubHttpServletResponse run(StubHttpServletRequest request) throws IOException, ServletException
+    {
+        response.reset();
+        request.clearAttributes();
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+
+    @Benchmark
+    public StubHttpServletResponse noOrigin() throws IOException, ServletException
+    {
+        return run(noOrigin);
+    }
+
+    @Benchmark
+    public StubHttpServletResponse simpleExactOrigin() throws IOException, ServletException
+    {
+        return run(exactOrigin);
+    }
+
+    @Benchmark
+    public StubHttpServletResponse simpleWildcardOrigin() throws IOException, ServletException
+    {
+        return run(wildcardOrigin);
+    }
+
+    @Benchmark
+    public StubHttpServletResponse rejectedOrigin() throws IOException, ServletException
+    {
+        return run(rejectedOrigin);
+    }
+
+    @Benchmark
+    public StubHttpServletResponse preflightOneHeader() throws IOException, ServletException
+    {
+        return run(preflightOneHeader);
+    }
+
+    @Benchmark
+    public StubHttpServletResponse preflightManyHeaders() throws IOException, ServletException
+    {
+        return run(preflightManyHeaders);
+    }
+
+    @Benchmark
+    public boolean isEnabledWebSocketUpgrade()
+    {
+        return filter.isEnabled(webSocketUpgrade);
+    }
+
+    @Benchmark
+    public boolean isEnabledPlainRequest()
+    {
+        return filter.isEnabled(exactOrigin);
+    }
+}
@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmarks {@link CrossOriginFilter#doFilter} for a client request
+ * that Stapler forwards <code>forwards</code> times before it is served,
+ * and that may then fail with an error dispatch of
+ * <code>errorStatus</code>.</p>
+ *
+ * <p>The filter decides once per client request, so the time per request
+ * should grow by little more than the cost of the forwards themselves.
+ * Run with <code>-prof gc</code> to check that forwards allocate
+ * nothing.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark
+{
+    @Param({"0", "1", "3", "5"})
+    public int forwards;
+
+    /** The status of the error dispatch after the forwards; 0 for none. */
+    @Param({"0", "401"})
+    public int errorStatus;
+
+    private CrossOriginFilter filter;
+    private StubHttpServletResponse response;
+    private ForwardingFilterChain chain;
+
+    private StubHttpServletRequest noOrigin;
+    private StubHttpServletRequest exactOrigin;
+
+    @Setup
+    public void setUp() throws ServletException
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put(CrossOriginFilter.ALLOWED_ORIGINS_PARAM, CrossOriginFilterBenchmark.allowlist(100));
+        params.put(CrossOriginFilter.EXPOSED_HEADERS_PARAM, "X-Jenkins");
+        filter = new CrossOriginFilter();
+        filter.init(new FilterConfigWrapper("benchmark", null, params));
+
+        String[] forwardPaths = new String[forwards];
+        for (int i = 0; i < forwards; ++i)
+            forwardPaths[i] = "/job/test/view" + i + "/index.jelly";
+        response = new StubHttpServletResponse();
+        chain = new ForwardingFilterChain(filter, forwardPaths, errorStatus);
+
+        noOrigin = new StubHttpServletRequest("GET", "/job/test/api/json");
+        exactOrigin = new StubHttpServletRequest("GET", "/job/test/api/json")
+            .addHeader("Origin", "https://partner50.example.com");
+    }
+
+    private StubHttpServletResponse run(StubHttpServletRequest request) throws IOException, ServletException
+    {
+        response.reset();
+        request.clearAttributes();
+        request.setRequestURI("/job/test/api/json");
+        chain.reset();
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+
+    @Benchmark
+    public StubHttpServletResponse noOrigin() throws IOException, ServletException
+    {
+        return run(noOrigin);
+    }
+
+    @Benchmark
+    public StubHttpServletResponse simpleExactOrigin() throws IOException, ServletException
+    {
+        return run(exactOrigin);
+    }
+}
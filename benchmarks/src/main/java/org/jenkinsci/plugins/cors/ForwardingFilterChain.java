@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * A {@link FilterChain} standing in for Stapler: it forwards a request
+ * back through the filter a number of times, each time to another path,
+ * the way Stapler forwards to views, and can then fail it with an error
+ * dispatch, the way the container handles a sendError.
+ *
+ * <p>Forwards and errors are marked with the request attributes a
+ * Servlet 2.4 container sets, and nothing is allocated, so that
+ * allocation measurements only see the filter.</p>
+ */
+public class ForwardingFilterChain implements FilterChain
+{
+    static final String FORWARD_REQUEST_URI_ATTRIBUTE = "javax.servlet.forward.request_uri";
+    static final String ERROR_STATUS_CODE_ATTRIBUTE = "javax.servlet.error.status_code";
+
+    private final Filter filter;
+    private final String[] forwardPaths;
+    /** The status of the error dispatch after the forwards, or null for none. */
+    private final Integer errorStatus;
+    private int forwarded;
+    private long invocations;
+
+    /**
+     * @param forwardPaths the paths the request is forwarded to, in turn
+     */
+    public ForwardingFilterChain(Filter filter, String[] forwardPaths, int errorStatus)
+    {
+        this.filter = filter;
+        this.forwardPaths = forwardPaths.clone();
+        this.errorStatus = errorStatus == 0 ? null : Integer.valueOf(errorStatus);
+    }
+
+    /** Starts over, for another request. */
+    public void reset()
+    {
+        forwarded = 0;
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException
+    {
+        StubHttpServletRequest stubRequest = (StubHttpServletRequest)request;
+        if (forwarded < forwardPaths.length)
+        {
+            if (forwarded == 0)
+                stubRequest.setAttribute(FORWARD_REQUEST_URI_ATTRIBUTE, stubRequest.getRequestURI());
+            stubRequest.setRequestURI(forwardPaths[forwarded++]);
+            filter.doFilter(request, response, this);
+            return;
+        }
+        if (errorStatus != null && stubRequest.getAttribute(ERROR_STATUS_CODE_ATTRIBUTE) == null)
+        {
+            // like a container's sendError, which may drop the headers set so far
+            StubHttpServletResponse stubResponse = (StubHttpServletResponse)response;
+            stubResponse.reset();
+            stubResponse.setStatus(errorStatus.intValue());
+            stubRequest.setAttribute(ERROR_STATUS_CODE_ATTRIBUTE, errorStatus);
+            filter.doFilter(request, response, this);
+            return;
+        }
+        ++invocations;
+    }
+
+    /** @return how often a request made it through all forwards to the end of the chain */
+    public long getInvocations()
+    {
+        return invocations;
+    }
+}
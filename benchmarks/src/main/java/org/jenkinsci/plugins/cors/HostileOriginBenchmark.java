@@ -0,0 +1,78 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmarks {@link CrossOriginFilter#doFilter} against Origin headers
+ * crafted to make a backtracking matcher blow up on wildcard origins
+ * with several "*".</p>
+ *
+ * <p>The origin cache is off, so every request is matched. The time per
+ * request should grow linearly with <code>originLength</code>.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HostileOriginBenchmark
+{
+    /** Plain wildcard origins and one that needs the regular expression path. */
+    static final String ALLOWED_ORIGINS = "https://*.*.example.*,https?://*.*.example.[a-z]{3}";
+
+    @Param({"64", "1024", "16384"})
+    public int originLength;
+
+    private CrossOriginFilter filter;
+    private StubHttpServletResponse response;
+    private StubFilterChain chain;
+    private StubHttpServletRequest hostileOrigin;
+
+    @Setup
+    public void setUp() throws ServletException
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put(CrossOriginFilter.ALLOWED_ORIGINS_PARAM, ALLOWED_ORIGINS);
+        params.put(CrossOriginFilter.ORIGIN_CACHE_SIZE_PARAM, "0");
+        filter = new CrossOriginFilter();
+        filter.init(new FilterConfigWrapper("benchmark", null, params));
+
+        response = new StubHttpServletResponse();
+        chain = new StubFilterChain();
+
+        // many dots and no "example", so every way of placing the "*"s fails
+        StringBuilder origin = new StringBuilder("https://");
+        while (origin.length() < originLength - 1)
+            origin.append("a.");
+        origin.append('x');
+        hostileOrigin = new StubHttpServletRequest("GET", "/api/json")
+            .addHeader("Origin", origin.toString());
+    }
+
+    @Benchmark
+    public StubHttpServletResponse hostileOrigin() throws IOException, ServletException
+    {
+        response.reset();
+        hostileOrigin.clearAttributes();
+        filter.doFilter(hostileOrigin, response, chain);
+        return response;
+    }
+}
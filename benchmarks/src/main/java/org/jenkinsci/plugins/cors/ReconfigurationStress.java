@@ -0,0 +1,335 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Hammers a {@link CrossOriginFilter} from many threads while another
+ * thread reconfigures it in a tight loop, alternating between two
+ * policies that differ in every setting and now and then destroying the
+ * filter, and checks that every response is exactly the one the policy
+ * that served it gives.</p>
+ *
+ * <p>The reconfiguring thread is the only one calling
+ * {@link CrossOriginFilter#reconfigure}, so it knows which policy each
+ * generation compiles to before publishing it. Each cross-origin
+ * response is checked against the expected response of the generation
+ * in its {@link CrossOriginFilter#POLICY_GENERATION_ATTRIBUTE}; other
+ * responses must match one of the policies. Expected responses come from
+ * filters that are configured once and never touched again.</p>
+ *
+ * <p>The run is split in two halves, without and with reconfiguration,
+ * and the request throughput of each is printed, along with the slowest
+ * 10 ms window, to show the dip reconfiguration causes. Exits with
+ * status 1 if any response is wrong or any thread throws:</p>
+ *
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar org.jenkinsci.plugins.cors.ReconfigurationStress [threads] [seconds]
+ * </pre>
+ */
+public class ReconfigurationStress
+{
+    private static final long WINDOW = TimeUnit.MILLISECONDS.toNanos(10);
+    /** A destroy() in place of every this many reconfigurations. */
+    private static final int DESTROY_EVERY = 50;
+    private static final int MAX_REPORTED = 20;
+
+    private static final String[] ORIGINS = {
+        null,
+        "https://a.example.com",
+        "https://b.example.com",
+        "https://ci.shared.example.com",
+        "https://partner.example.com",
+        "https://evil.example.org",
+    };
+
+    /** The policies the filter alternates between; null stands for a destroyed filter. */
+    private static final List<Map<String,String>> POLICIES = Collections.unmodifiableList(java.util.Arrays.asList(policyA(), policyB(), null));
+
+    private final CrossOriginFilter filter = new CrossOriginFilter();
+    /** Expected outcome of each request shape, by index in {@link #POLICIES}. */
+    private final String[][] expected;
+    /** Index in {@link #POLICIES} of the policy each generation was compiled from. */
+    private final Map<Long,Integer> generations = new ConcurrentHashMap<Long,Integer>();
+    /** The generation of the last call to {@link CrossOriginFilter#reconfigure}; destroy() does not advance it. */
+    private long lastGeneration;
+    private final AtomicLong mismatches = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private volatile boolean running = true;
+    private volatile boolean reconfiguring;
+
+    private ReconfigurationStress() throws Exception
+    {
+        List<StubHttpServletRequest> shapes = shapes();
+        expected = new String[POLICIES.size()][shapes.size()];
+        for (int p = 0; p < POLICIES.size(); ++p)
+        {
+            CrossOriginFilter reference = new CrossOriginFilter();
+            if (POLICIES.get(p) != null)
+                reference.init(new FilterConfigWrapper("reference", null, POLICIES.get(p)));
+            StubHttpServletResponse response = new StubHttpServletResponse();
+            for (int s = 0; s < shapes.size(); ++s)
+                expected[p][s] = outcome(reference, shapes.get(s), response, new StubFilterChain());
+        }
+        generations.put(0L, POLICIES.size() - 1);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        // thousands of reconfigurations would otherwise measure the console
+        Logger.getLogger("org.jenkins.ci.plugins.cors.CrossOriginFilter").setLevel(Level.WARNING);
+        System.exit(new ReconfigurationStress().run(threads, seconds) ? 0 : 1);
+    }
+
+    private boolean run(int threadCount, int seconds) throws Exception
+    {
+        configure(0);
+        final AtomicLongArray completed = new AtomicLongArray(threadCount * 16);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; ++t)
+        {
+            final int slot = t * 16;
+            Thread worker = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    work(completed, slot);
+                }
+            }, "stress-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        Thread reconfigurer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                reconfigure();
+            }
+        }, "reconfigure");
+        reconfigurer.start();
+
+        long half = TimeUnit.SECONDS.toNanos(seconds) / 2;
+        Phase steady = measure(completed, half);
+        reconfiguring = true;
+        Phase reconfigured = measure(completed, half);
+        running = false;
+        reconfigurer.join();
+        for (Thread worker : workers)
+            worker.join();
+
+        System.out.println(threadCount + " threads, " + total(completed) + " requests checked, "
+                           + (generations.size() - 1) + " reconfigurations");
+        System.out.println("without reconfiguration: " + steady);
+        System.out.println("with reconfiguration:    " + reconfigured);
+        if (failure.get() != null)
+        {
+            System.out.println("FAIL exception in a request thread:");
+            failure.get().printStackTrace(System.out);
+        }
+        if (mismatches.get() > 0)
+            System.out.println("FAIL " + mismatches.get() + " responses matched neither policy");
+        boolean ok = failure.get() == null && mismatches.get() == 0;
+        if (ok)
+            System.out.println("ok");
+        return ok;
+    }
+
+    private void work(AtomicLongArray completed, int slot)
+    {
+        try
+        {
+            List<StubHttpServletRequest> shapes = shapes();
+            StubHttpServletResponse response = new StubHttpServletResponse();
+            StubFilterChain chain = new StubFilterChain();
+            for (int i = 0; running; ++i)
+            {
+                int s = i % shapes.size();
+                StubHttpServletRequest request = shapes.get(s);
+                String outcome = outcome(filter, request, response, chain);
+                Long generation = (Long)request.getAttribute(CrossOriginFilter.POLICY_GENERATION_ATTRIBUTE);
+                check(s, outcome, generation);
+                completed.incrementAndGet(slot);
+            }
+        }
+        catch (Throwable x)
+        {
+            failure.compareAndSet(null, x);
+            running = false;
+        }
+    }
+
+    private void check(int shape, String outcome, Long generation)
+    {
+        if (generation != null)
+        {
+            Integer policy = generations.get(generation);
+            if (policy != null && expected[policy][shape].equals(outcome))
+                return;
+            report("generation " + generation + " (policy " + policy + "), shape " + shape + ": expected "
+                   + (policy == null ? "?" : expected[policy][shape]) + ", got " + outcome);
+            return;
+        }
+        for (String[] candidate : expected)
+        {
+            if (candidate[shape].equals(outcome))
+                return;
+        }
+        report("shape " + shape + ": " + outcome + " matches no policy");
+    }
+
+    private void report(String message)
+    {
+        if (mismatches.incrementAndGet() <= MAX_REPORTED)
+            System.out.println("mismatch: " + message);
+    }
+
+    private void reconfigure()
+    {
+        try
+        {
+            for (int i = 1; running; ++i)
+            {
+                if (!reconfiguring)
+                {
+                    Thread.sleep(1);
+                    continue;
+                }
+                if (i % DESTROY_EVERY == 0)
+                    filter.destroy();
+                else
+                    configure(i % 2);
+            }
+        }
+        catch (Throwable x)
+        {
+            failure.compareAndSet(null, x);
+            running = false;
+        }
+    }
+
+    /** Must only be called by one thread at a time. */
+    private void configure(int policy) throws Exception
+    {
+        // the next generation is known, since only this thread reconfigures
+        generations.put(++lastGeneration, policy);
+        filter.reconfigure(new FilterConfigWrapper("stress", null, POLICIES.get(policy)));
+    }
+
+    private Phase measure(AtomicLongArray completed, long duration) throws InterruptedException
+    {
+        long start = System.nanoTime();
+        long total = total(completed);
+        long first = total;
+        double slowest = Double.MAX_VALUE;
+        long windowStart = start;
+        while (running && System.nanoTime() - start < duration)
+        {
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(WINDOW));
+            long now = System.nanoTime();
+            long current = total(completed);
+            slowest = Math.min(slowest, (current - total) * 1e9 / (now - windowStart));
+            total = current;
+            windowStart = now;
+        }
+        return new Phase((total - first) * 1e9 / (System.nanoTime() - start), slowest);
+    }
+
+    private static long total(AtomicLongArray completed)
+    {
+        long total = 0L;
+        for (int i = 0; i < completed.length(); i += 16)
+            total += completed.get(i);
+        return total;
+    }
+
+    private static String outcome(CrossOriginFilter filter, StubHttpServletRequest request,
+                                  StubHttpServletResponse response, StubFilterChain chain) throws Exception
+    {
+        response.reset();
+        request.clearAttributes();
+        long chained = chain.getInvocations();
+        filter.doFilter(request, response, chain);
+        List<String> headers = new ArrayList<String>();
+        for (int i = 0; i < response.getHeaderCount(); ++i)
+            headers.add(response.getHeaderName(i) + ": " + response.getHeader(response.getHeaderName(i)));
+        Collections.sort(headers);
+        return response.getStatus() + " " + headers + (chain.getInvocations() > chained ? " chained" : " answered");
+    }
+
+    private static List<StubHttpServletRequest> shapes()
+    {
+        List<StubHttpServletRequest> shapes = new ArrayList<StubHttpServletRequest>();
+        for (String origin : ORIGINS)
+        {
+            shapes.add(new StubHttpServletRequest("GET", "/api/json").addHeader("Origin", origin));
+            shapes.add(new StubHttpServletRequest("GET", "/job/app/build").addHeader("Origin", origin));
+            shapes.add(new StubHttpServletRequest("OPTIONS", "/api/json").addHeader("Origin", origin)
+                       .addHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_METHOD_HEADER, "PUT"));
+            shapes.add(new StubHttpServletRequest("OPTIONS", "/api/json").addHeader("Origin", origin)
+                       .addHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_METHOD_HEADER, "POST")
+                       .addHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_HEADERS_HEADER, "Content-Type, X-Custom"));
+        }
+        return shapes;
+    }
+
+    private static Map<String,String> policyA()
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put(CrossOriginFilter.ALLOWED_ORIGINS_PARAM, "https://a.example.com,https://*.shared.example.com");
+        params.put(CrossOriginFilter.ALLOWED_METHODS_PARAM, "GET,POST");
+        params.put(CrossOriginFilter.ALLOWED_HEADERS_PARAM, "Content-Type,X-Custom");
+        params.put(CrossOriginFilter.ALLOW_CREDENTIALS_PARAM, "true");
+        params.put(CrossOriginFilter.EXPOSED_HEADERS_PARAM, "X-A");
+        params.put(CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM, "600");
+        params.put(CrossOriginFilter.CHAIN_PREFLIGHT_PARAM, "false");
+        return params;
+    }
+
+    private static Map<String,String> policyB()
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put(CrossOriginFilter.ALLOWED_ORIGINS_PARAM, "https://b.example.com,https://*.shared.example.com");
+        params.put(CrossOriginFilter.ALLOWED_METHODS_PARAM, "GET,PUT,DELETE");
+        params.put(CrossOriginFilter.ALLOWED_HEADERS_PARAM, "Content-Type");
+        params.put(CrossOriginFilter.ALLOW_CREDENTIALS_PARAM, "false");
+        params.put(CrossOriginFilter.EXPOSED_HEADERS_PARAM, "X-B");
+        params.put(CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM, "1200");
+        params.put(CrossOriginFilter.CHAIN_PREFLIGHT_PARAM, "true");
+        params.put(CrossOriginFilter.REJECT_DISALLOWED_PARAM, "true");
+        params.put(CrossOriginFilter.PROXY_CACHEABLE_PARAM, "true");
+        params.put(CrossOriginFilter.PATH_POLICY_PARAM_PREFIX + "0." + CrossOriginFilter.PATH_PARAM, "/job/*/build");
+        params.put(CrossOriginFilter.PATH_POLICY_PARAM_PREFIX + "0." + CrossOriginFilter.ALLOWED_ORIGINS_PARAM, "https://a.example.com");
+        params.put(CrossOriginFilter.ORIGIN_POLICY_PARAM_PREFIX + "0." + CrossOriginFilter.ALLOWED_ORIGINS_PARAM, "https://partner.example.com");
+        params.put(CrossOriginFilter.ORIGIN_POLICY_PARAM_PREFIX + "0." + CrossOriginFilter.ALLOWED_METHODS_PARAM, "GET");
+        return params;
+    }
+
+    private static final class Phase
+    {
+        final double throughput;
+        final double slowestWindow;
+
+        Phase(double throughput, double slowestWindow)
+        {
+            this.throughput = throughput;
+            this.slowestWindow = slowestWindow;
+        }
+
+        public String toString()
+        {
+            return String.format("%.0f requests/s, slowest 10 ms window at %.0f requests/s", throughput, slowestWindow);
+        }
+    }
+}
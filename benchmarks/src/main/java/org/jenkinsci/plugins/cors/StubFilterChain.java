@@ -0,0 +1,24 @@
+package org.jenkinsci.plugins.cors;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * A {@link FilterChain} standing in for the rest of Jenkins: it only
+ * counts how often a filter passed a request on.
+ */
+public class StubFilterChain implements FilterChain
+{
+    private long invocations;
+
+    public void doFilter(ServletRequest request, ServletResponse response)
+    {
+        ++invocations;
+    }
+
+    public long getInvocations()
+    {
+        return invocations;
+    }
+}
@@ -0,0 +1,232 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.BufferedReader;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * <p>A minimal {@link HttpServletRequest} for driving a
+ * {@link CrossOriginFilter} outside a servlet container.</p>
+ *
+ * <p>Headers and attributes live in small fixed arrays, so that reading
+ * them allocates nothing and does not distort allocation measurements of
+ * the filter. Methods the filter never calls throw
+ * {@link UnsupportedOperationException}.</p>
+ */
+public class StubHttpServletRequest implements HttpServletRequest
+{
+    private static final int MAX_ENTRIES = 32;
+
+    private String method = "GET";
+    private String requestURI = "/";
+    private String contextPath = "";
+    private final String[] headerNames = new String[MAX_ENTRIES];
+    private final String[] headerValues = new String[MAX_ENTRIES];
+    private int headerCount;
+    private final String[] attributeNames = new String[MAX_ENTRIES];
+    private final Object[] attributeValues = new Object[MAX_ENTRIES];
+    private int attributeCount;
+
+    public StubHttpServletRequest()
+    {
+    }
+
+    public StubHttpServletRequest(String method, String requestURI)
+    {
+        this.method = method;
+        this.requestURI = requestURI;
+    }
+
+    public StubHttpServletRequest setMethod(String method)
+    {
+        this.method = method;
+        return this;
+    }
+
+    public StubHttpServletRequest setRequestURI(String requestURI)
+    {
+        this.requestURI = requestURI;
+        return this;
+    }
+
+    public StubHttpServletRequest setContextPath(String contextPath)
+    {
+        this.contextPath = contextPath;
+        return this;
+    }
+
+    /** Adds a header value; a header may be added more than once. Null values are ignored. */
+    public StubHttpServletRequest addHeader(String name, String value)
+    {
+        if (value == null)
+            return this;
+        if (headerCount == MAX_ENTRIES)
+            throw new IllegalStateException("too many headers");
+        headerNames[headerCount] = name;
+        headerValues[headerCount] = value;
+        ++headerCount;
+        return this;
+    }
+
+    /** Forgets the attributes set while the request was processed, so it can be replayed. */
+    public void clearAttributes()
+    {
+        for (int i = 0; i < attributeCount; ++i)
+        {
+            attributeNames[i] = null;
+            attributeValues[i] = null;
+        }
+        attributeCount = 0;
+    }
+
+    public String getMethod() { return method; }
+    public String getRequestURI() { return requestURI; }
+    public String getContextPath() { return contextPath; }
+
+    public String getHeader(String name)
+    {
+        for (int i = 0; i < headerCount; ++i)
+        {
+            if (headerNames[i].equalsIgnoreCase(name))
+                return headerValues[i];
+        }
+        return null;
+    }
+
+    public Enumeration getHeaders(String name)
+    {
+        Vector<String> values = new Vector<String>();
+        for (int i = 0; i < headerCount; ++i)
+        {
+            if (headerNames[i].equalsIgnoreCase(name))
+                values.add(headerValues[i]);
+        }
+        return values.elements();
+    }
+
+    public Enumeration getHeaderNames()
+    {
+        Vector<String> names = new Vector<String>();
+        for (int i = 0; i < headerCount; ++i)
+            names.add(headerNames[i]);
+        return names.elements();
+    }
+
+    public Object getAttribute(String name)
+    {
+        for (int i = 0; i < attributeCount; ++i)
+        {
+            if (attributeNames[i].equals(name))
+                return attributeValues[i];
+        }
+        return null;
+    }
+
+    public void setAttribute(String name, Object value)
+    {
+        if (value == null)
+        {
+            removeAttribute(name);
+            return;
+        }
+        for (int i = 0; i < attributeCount; ++i)
+        {
+            if (attributeNames[i].equals(name))
+            {
+                attributeValues[i] = value;
+                return;
+            }
+        }
+        if (attributeCount == MAX_ENTRIES)
+            throw new IllegalStateException("too many attributes");
+        attributeNames[attributeCount] = name;
+        attributeValues[attributeCount] = value;
+        ++attributeCount;
+    }
+
+    public void removeAttribute(String name)
+    {
+        for (int i = 0; i < attributeCount; ++i)
+        {
+            if (attributeNames[i].equals(name))
+            {
+                --attributeCount;
+                attributeNames[i] = attributeNames[attributeCount];
+                attributeValues[i] = attributeValues[attributeCount];
+                attributeNames[attributeCount] = null;
+                attributeValues[attributeCount] = null;
+                return;
+            }
+        }
+    }
+
+    public Enumeration getAttributeNames()
+    {
+        Vector<String> names = new Vector<String>();
+        for (int i = 0; i < attributeCount; ++i)
+            names.add(attributeNames[i]);
+        return names.elements();
+    }
+
+    public long getDateHeader(String name) { return -1L; }
+
+    public int getIntHeader(String name)
+    {
+        String value = getHeader(name);
+        return value == null ? -1 : Integer.parseInt(value);
+    }
+
+    public String getPathInfo() { return null; }
+    public String getServletPath() { return ""; }
+    public String getQueryString() { return null; }
+    public StringBuffer getRequestURL() { return new StringBuffer("http://localhost:8080").append(requestURI); }
+    public String getProtocol() { return "HTTP/1.1"; }
+    public String getScheme() { return "http"; }
+    public String getServerName() { return "localhost"; }
+    public int getServerPort() { return 8080; }
+    public boolean isSecure() { return false; }
+    public String getCharacterEncoding() { return null; }
+    public void setCharacterEncoding(String env) { }
+    public int getContentLength() { return -1; }
+    public String getContentType() { return null; }
+    public Locale getLocale() { return Locale.getDefault(); }
+    public Enumeration getLocales() { return Collections.enumeration(Collections.singletonList(Locale.getDefault())); }
+
+    public String getAuthType() { throw new UnsupportedOperationException(); }
+    public Cookie[] getCookies() { throw new UnsupportedOperationException(); }
+    public String getPathTranslated() { throw new UnsupportedOperationException(); }
+    public String getRemoteUser() { throw new UnsupportedOperationException(); }
+    public boolean isUserInRole(String role) { throw new UnsupportedOperationException(); }
+    public Principal getUserPrincipal() { throw new UnsupportedOperationException(); }
+    public String getRequestedSessionId() { throw new UnsupportedOperationException(); }
+    public HttpSession getSession(boolean create) { throw new UnsupportedOperationException(); }
+    public HttpSession getSession() { throw new UnsupportedOperationException(); }
+    public boolean isRequestedSessionIdValid() { throw new UnsupportedOperationException(); }
+    public boolean isRequestedSessionIdFromCookie() { throw new UnsupportedOperationException(); }
+    public boolean isRequestedSessionIdFromURL() { throw new UnsupportedOperationException(); }
+    public boolean isRequestedSessionIdFromUrl() { throw new UnsupportedOperationException(); }
+    public ServletInputStream getInputStream() { throw new UnsupportedOperationException(); }
+    public String getParameter(String name) { throw new UnsupportedOperationException(); }
+    public Enumeration getParameterNames() { throw new UnsupportedOperationException(); }
+    public String[] getParameterValues(String name) { throw new UnsupportedOperationException(); }
+    public Map getParameterMap() { throw new UnsupportedOperationException(); }
+    public BufferedReader getReader() { throw new UnsupportedOperationException(); }
+    public String getRemoteAddr() { return "127.0.0.1"; }
+    public String getRemoteHost() { return "localhost"; }
+    public RequestDispatcher getRequestDispatcher(String path) { throw new UnsupportedOperationException(); }
+    public String getRealPath(String path) { throw new UnsupportedOperationException(); }
+    public int getRemotePort() { return 0; }
+    public String getLocalName() { return "localhost"; }
+    public String getLocalAddr() { return "127.0.0.1"; }
+    public int getLocalPort() { return 8080; }
+}
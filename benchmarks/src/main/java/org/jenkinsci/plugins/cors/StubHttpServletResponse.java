@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>A minimal {@link HttpServletResponse} that records the status and
+ * headers set by a {@link CrossOriginFilter}.</p>
+ *
+ * <p>Headers live in small fixed arrays, so setting them allocates
+ * nothing. Call {@link #reset()} to reuse the response for another
+ * request.</p>
+ */
+public class StubHttpServletResponse implements HttpServletResponse
+{
+    private static final int MAX_HEADERS = 32;
+
+    private int status = SC_OK;
+    private final String[] headerNames = new String[MAX_HEADERS];
+    private final String[] headerValues = new String[MAX_HEADERS];
+    private int headerCount;
+    private boolean committed;
+
+    public int getStatus()
+    {
+        return status;
+    }
+
+    public int getHeaderCount()
+    {
+        return headerCount;
+    }
+
+    public String getHeaderName(int index)
+    {
+        return headerNames[index];
+    }
+
+    public String getHeader(String name)
+    {
+        for (int i = 0; i < headerCount; ++i)
+        {
+            if (headerNames[i].equalsIgnoreCase(name))
+                return headerValues[i];
+        }
+        return null;
+    }
+
+    public boolean containsHeader(String name)
+    {
+        return getHeader(name) != null;
+    }
+
+    public void setHeader(String name, String value)
+    {
+        for (int i = 0; i < headerCount; ++i)
+        {
+            if (headerNames[i].equalsIgnoreCase(name))
+            {
+                headerValues[i] = value;
+                return;
+            }
+        }
+        addHeader(name, value);
+    }
+
+    public void addHeader(String name, String value)
+    {
+        if (headerCount == MAX_HEADERS)
+            throw new IllegalStateException("too many headers");
+        headerNames[headerCount] = name;
+        headerValues[headerCount] = value;
+        ++headerCount;
+    }
+
+    public void setIntHeader(String name, int value) { setHeader(name, String.valueOf(value)); }
+    public void addIntHeader(String name, int value) { addHeader(name, String.valueOf(value)); }
+    public void setDateHeader(String name, long date) { setHeader(name, String.valueOf(date)); }
+    public void addDateHeader(String name, long date) { addHeader(name, String.valueOf(date)); }
+
+    public void setStatus(int status) { this.status = status; }
+    public void setStatus(int status, String message) { this.status = status; }
+    public void sendError(int status) { this.status = status; this.committed = true; }
+    public void sendError(int status, String message) { this.status = status; this.committed = true; }
+    public void sendRedirect(String location) { this.status = 302; this.committed = true; }
+
+    public void reset()
+    {
+        for (int i = 0; i < headerCount; ++i)
+        {
+            headerNames[i] = null;
+            headerValues[i] = null;
+        }
+        headerCount = 0;
+        status = SC_OK;
+        committed = false;
+    }
+
+    public void resetBuffer() { }
+    public void flushBuffer() { committed = true; }
+    public boolean isCommitted() { return committed; }
+    public void setBufferSize(int size) { }
+    public int getBufferSize() { return 0; }
+    public void setContentLength(int length) { }
+    public void setContentType(String type) { }
+    public String getContentType() { return null; }
+    public void setCharacterEncoding(String charset) { }
+    public String getCharacterEncoding() { return "UTF-8"; }
+    public void setLocale(Locale locale) { }
+    public Locale getLocale() { return Locale.getDefault(); }
+
+    public ServletOutputStream getOutputStream()
+    {
+        return new ServletOutputStream()
+        {
+            @Override
+            public void write(int b) { }
+        };
+    }
+
+    public PrintWriter getWriter() { return new PrintWriter(getOutputStream()); }
+
+    public void addCookie(Cookie cookie) { throw new UnsupportedOperationException(); }
+    public String encodeURL(String url) { return url; }
+    public String encodeRedirectURL(String url) { return url; }
+    public String encodeUrl(String url) { return url; }
+    public String encodeRedirectUrl(String url) { return url; }
+}
@@ -0,0 +1,159 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+
+/**
+ * <p>Replays a trace recorded with the <b>traceFile</b> parameter through
+ * one or two {@link CrossOriginFilter}s, driven by stub servlet
+ * objects.</p>
+ *
+ * <p>Each policy is a properties file of filter parameters. With one
+ * policy, the tool reports the throughput of the filter and how often it
+ * reached each outcome; with two, it also reports every kind of request
+ * whose outcome differs between them, with the first few examples:</p>
+ *
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar org.jenkinsci.plugins.cors.TraceReplay \
+ *       cors-trace.bin current.properties proposed.properties
+ * </pre>
+ *
+ * <p>The outcome of a request is the response status, whether it was
+ * granted access (got an Access-Control-Allow-Origin header), and
+ * whether it was passed down the filter chain.</p>
+ */
+public class TraceReplay
+{
+    private static final int EXAMPLES = 20;
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2 || args.length > 3)
+        {
+            System.err.println("usage: TraceReplay <trace> <policy.properties> [<other-policy.properties>]");
+            System.exit(2);
+        }
+        Replayer a = new Replayer(args[1]);
+        Replayer b = args.length > 2 ? new Replayer(args[2]) : null;
+
+        Map<String,Long> differences = new TreeMap<String,Long>();
+        int examples = 0;
+        long requests = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+        try
+        {
+            TraceRecord.readHeader(in);
+            for (TraceRecord record; (record = TraceRecord.readFrom(in)) != null; ++requests)
+            {
+                String outcomeA = a.replay(record);
+                if (b == null)
+                    continue;
+                String outcomeB = b.replay(record);
+                if (outcomeA.equals(outcomeB))
+                    continue;
+                String difference = outcomeA + " -> " + outcomeB;
+                Long count = differences.get(difference);
+                differences.put(difference, count == null ? 1L : count + 1);
+                if (examples++ < EXAMPLES)
+                    System.out.println("differs: " + describe(record) + ": " + difference);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        System.out.println(requests + " requests");
+        a.report();
+        if (b != null)
+        {
+            b.report();
+            long total = 0;
+            for (Map.Entry<String,Long> difference : differences.entrySet())
+            {
+                System.out.println("  " + difference.getValue() + "\t" + difference.getKey());
+                total += difference.getValue();
+            }
+            System.out.println(total + " requests differ");
+        }
+    }
+
+    private static String describe(TraceRecord record)
+    {
+        return record.getMethod() + " " + record.getPath() + " Origin=" + record.getOrigin()
+            + (record.getRequestMethod() == null ? "" : " " + CrossOriginFilter.ACCESS_CONTROL_REQUEST_METHOD_HEADER + "=" + record.getRequestMethod())
+            + (record.getRequestHeaders() == null ? "" : " " + CrossOriginFilter.ACCESS_CONTROL_REQUEST_HEADERS_HEADER + "=" + record.getRequestHeaders());
+    }
+
+    /** One policy, its filter and its tallies. */
+    private static final class Replayer
+    {
+        private final String name;
+        private final CrossOriginFilter filter = new CrossOriginFilter();
+        private final StubHttpServletResponse response = new StubHttpServletResponse();
+        private final StubFilterChain chain = new StubFilterChain();
+        private final Map<String,Long> outcomes = new TreeMap<String,Long>();
+        private long nanos;
+        private long requests;
+
+        Replayer(String policyFile) throws IOException, ServletException
+        {
+            this.name = policyFile;
+            Properties properties = new Properties();
+            Reader reader = new FileReader(policyFile);
+            try
+            {
+                properties.load(reader);
+            }
+            finally
+            {
+                reader.close();
+            }
+            Map<String,String> params = new HashMap<String,String>();
+            for (String key : properties.stringPropertyNames())
+                params.put(key, properties.getProperty(key));
+            // a replay must not record itself
+            params.remove(CrossOriginFilter.TRACE_FILE_PARAM);
+            filter.init(new FilterConfigWrapper("replay", null, params));
+        }
+
+        String replay(TraceRecord record) throws IOException, ServletException
+        {
+            StubHttpServletRequest request = new StubHttpServletRequest(record.getMethod(), record.getPath())
+                .addHeader("Origin", record.getOrigin())
+                .addHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_METHOD_HEADER, record.getRequestMethod())
+                .addHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_HEADERS_HEADER, record.getRequestHeaders())
+                .addHeader("Connection", record.getConnection())
+                .addHeader("Upgrade", record.getUpgrade());
+            response.reset();
+            long chained = chain.getInvocations();
+            long start = System.nanoTime();
+            filter.doFilter(request, response, chain);
+            nanos += System.nanoTime() - start;
+            ++requests;
+            String outcome = response.getStatus()
+                + (response.getHeader(CrossOriginFilter.ACCESS_CONTROL_ALLOW_ORIGIN_HEADER) != null ? " allowed" : " not allowed")
+                + (chain.getInvocations() > chained ? ", chained" : ", answered");
+            Long count = outcomes.get(outcome);
+            outcomes.put(outcome, count == null ? 1L : count + 1);
+            return outcome;
+        }
+
+        void report()
+        {
+            System.out.println(name + ": " + (requests == 0 ? 0 : nanos / requests) + " ns per request in the filter");
+            for (Map.Entry<String,Long> outcome : outcomes.entrySet())
+                System.out.println("  " + outcome.getValue() + "\t" + outcome.getKey());
+        }
+    }
+}
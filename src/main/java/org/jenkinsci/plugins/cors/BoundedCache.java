@@ -0,0 +1,170 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A concurrent cache holding at most a fixed number of entries.</p>
+ *
+ * <p>Eviction follows the CLOCK (second chance) approximation of LRU: a
+ * lookup only marks its entry as referenced, and when the cache is full
+ * the oldest entries are evicted unless they have been referenced since
+ * the clock hand last passed them. Lookups therefore never lock and
+ * never allocate. An insertion into a full cache evicts an entry first,
+ * under the eviction lock; if another insertion holds that lock, it does
+ * not wait, but leaves its entry out. A flood of distinct keys thus
+ * costs misses, never a queue of threads behind the lock. Concurrent
+ * insertions may take the cache a few entries past its maximum size, until
+ * the next eviction.</p>
+ *
+ * <p>A cache with a maximum size of zero or less stores nothing.</p>
+ */
+final class BoundedCache<K,V>
+{
+    private final int maximumSize;
+    private final ConcurrentHashMap<K,Entry<V>> map;
+    private final ConcurrentLinkedQueue<K> clock = new ConcurrentLinkedQueue<K>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+
+    BoundedCache(int maximumSize)
+    {
+        this.maximumSize = maximumSize;
+        this.map = new ConcurrentHashMap<K,Entry<V>>(Math.max(16, Math.min(maximumSize, 1 << 16)));
+    }
+
+    /**
+     * @return the cached value, or <code>null</code> on a miss
+     */
+    V get(K key)
+    {
+        Entry<V> entry = map.get(key);
+        if (entry == null)
+        {
+            misses.increment();
+            return null;
+        }
+        // only write when needed, so hot entries do not keep
+        // invalidating the cache line shared by the reading threads
+        if (!entry.referenced)
+            entry.referenced = true;
+        hits.increment();
+        return entry.value;
+    }
+
+    void put(K key, V value)
+    {
+        putIfAbsent(key, value);
+    }
+
+    /**
+     * @return the value already cached for <code>key</code>, or
+     *         <code>null</code> if <code>value</code> was cached, or left
+     *         out because the cache stores nothing or another insertion
+     *         is making room
+     */
+    V putIfAbsent(K key, V value)
+    {
+        if (maximumSize <= 0)
+            return null;
+        if (size.get() >= maximumSize && !makeRoom())
+        {
+            Entry<V> existing = map.get(key);
+            return existing == null ? null : existing.value;
+        }
+        Entry<V> existing = map.putIfAbsent(key, new Entry<V>(value));
+        if (existing != null)
+            return existing.value;
+        clock.add(key);
+        size.incrementAndGet();
+        return null;
+    }
+
+    /** @return whether room was made, or false if another thread holds the eviction lock */
+    private boolean makeRoom()
+    {
+        if (!evictionLock.tryLock())
+            return false;
+        try
+        {
+            evict();
+            return true;
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /** Evicts entries until there is room for one more. Must hold {@link #evictionLock}. */
+    private void evict()
+    {
+        while (size.get() >= maximumSize)
+        {
+            K key = clock.poll();
+            if (key == null)
+                return;
+            Entry<V> entry = map.get(key);
+            if (entry == null)
+                continue;
+            if (entry.referenced)
+            {
+                entry.referenced = false;
+                clock.add(key);
+            }
+            else if (map.remove(key, entry))
+            {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the cached entries, without marking them as
+     *         referenced
+     */
+    Map<K,V> snapshot()
+    {
+        Map<K,V> snapshot = new HashMap<K,V>();
+        for (Map.Entry<K,Entry<V>> entry : map.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().value);
+        return snapshot;
+    }
+
+    int getMaximumSize()
+    {
+        return maximumSize;
+    }
+
+    int size()
+    {
+        return size.get();
+    }
+
+    long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    private static final class Entry<V>
+    {
+        final V value;
+        volatile boolean referenced;
+
+        Entry(V value)
+        {
+            this.value = value;
+        }
+    }
+}
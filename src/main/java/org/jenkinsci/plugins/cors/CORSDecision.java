@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.cors;
+
+/**
+ * What a {@link CrossOriginFilter} did with a request.
+ */
+enum CORSDecision
+{
+    /** The request path is on the bypass list, so the request was passed on untouched. */
+    PATH_BYPASS("path_bypass"),
+    /** The request carried no Origin header and was passed on untouched. */
+    NO_ORIGIN("no_origin"),
+    /** A WebSocket upgrade, passed on without CORS headers. */
+    WEBSOCKET_BYPASS("websocket_bypass"),
+    /** The Origin did not match the allowed origins; no CORS headers were emitted. */
+    ORIGIN_REJECTED("origin_rejected"),
+    SIMPLE_ALLOWED("simple_allowed"),
+    NON_SIMPLE_ALLOWED("non_simple_allowed"),
+    PREFLIGHT_ALLOWED("preflight_allowed"),
+    PREFLIGHT_REJECTED_METHOD("preflight_rejected_method"),
+    PREFLIGHT_REJECTED_HEADERS("preflight_rejected_headers"),
+    /** A preflight from an origin that used up its preflight rate limit, answered with a 429. */
+    PREFLIGHT_RATE_LIMITED("preflight_rate_limited");
+
+    /** The name used for this decision in metrics. */
+    final String label;
+
+    private CORSDecision(String label)
+    {
+        this.label = label;
+    }
+
+    /** @return whether the response carries CORS headers granting access */
+    boolean isAllowed()
+    {
+        return this == SIMPLE_ALLOWED || this == NON_SIMPLE_ALLOWED || this == PREFLIGHT_ALLOWED;
+    }
+
+    /** @return whether the request was a preflight */
+    boolean isPreflight()
+    {
+        return this == PREFLIGHT_ALLOWED || this == PREFLIGHT_REJECTED_METHOD || this == PREFLIGHT_REJECTED_HEADERS || this == PREFLIGHT_RATE_LIMITED;
+    }
+
+    /** @return whether the request was cross-origin and not allowed */
+    boolean isRejected()
+    {
+        return this == ORIGIN_REJECTED || this == PREFLIGHT_REJECTED_METHOD || this == PREFLIGHT_REJECTED_HEADERS;
+    }
+}
@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Explains at <code>/cors-explain/</code> how the {@link CrossOriginFilter}
+ * would treat a request shape, with the time each stage of the decision
+ * takes, so a CORS failure can be looked into without turning on filter
+ * logging. For example:
+ *
+ * <pre>
+ * /cors-explain/?origin=https://dash.example.com&amp;method=OPTIONS&amp;path=/job/foo/api/json&amp;requestMethod=PUT&amp;requestHeaders=X-Foo
+ * </pre>
+ *
+ * <p>The explanation shows the configured origins, so it requires the
+ * administer permission.</p>
+ */
+@Extension
+public class CORSExplainAction implements RootAction
+{
+    public static final String URL_NAME = "cors-explain";
+
+    /** No icon, so the action does not show up in the side panel. */
+    public String getIconFileName() { return null; }
+    public String getDisplayName() { return "CORS Explain"; }
+    public String getUrlName() { return URL_NAME; }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException
+    {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        CORSPlugin plugin = Jenkins.getInstance().getPlugin(CORSPlugin.class);
+        CrossOriginFilter filter = plugin == null ? null : plugin.getFilter();
+        if (filter == null)
+        {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setContentType("text/plain; charset=utf-8");
+        PrintWriter out = rsp.getWriter();
+        String method = blankToNull(req.getParameter("method"));
+        if (method == null)
+        {
+            out.println("Explains how the CORS filter treats a request, with the nanoseconds each stage takes.");
+            out.println();
+            out.println("Parameters:");
+            out.println("  method          the request method, such as GET, or OPTIONS for a preflight (required)");
+            out.println("  path            the request path below the Jenkins root URL, such as /job/foo/api/json (default /)");
+            out.println("  origin          the Origin header (default none)");
+            out.println("  requestMethod   the " + CrossOriginFilter.ACCESS_CONTROL_REQUEST_METHOD_HEADER + " header of a preflight");
+            out.println("  requestHeaders  the " + CrossOriginFilter.ACCESS_CONTROL_REQUEST_HEADERS_HEADER + " header of a preflight");
+        }
+        else
+        {
+            String path = blankToNull(req.getParameter("path"));
+            out.print(filter.explain(blankToNull(req.getParameter("origin")),
+                                     method,
+                                     path == null ? "/" : path.startsWith("/") ? path : "/" + path,
+                                     blankToNull(req.getParameter("requestMethod")),
+                                     blankToNull(req.getParameter("requestHeaders"))));
+        }
+        out.flush();
+    }
+
+    private static String blankToNull(String value)
+    {
+        return value == null || value.trim().length() == 0 ? null : value.trim();
+    }
+}
@@ -0,0 +1,129 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Keeps the item overrides of the {@link CrossOriginFilter} in step with
+ * the {@link CORSJobProperty} of each job: all of them when the jobs are
+ * loaded, and one item, with the items below it, whenever an item is
+ * created, saved, renamed or deleted.
+ *
+ * <p>Overrides are keyed by the URL of their item, built from the item
+ * names rather than from {@link Item#getUrl()}, which depends on the view
+ * the current request went through.</p>
+ */
+@Extension
+public class CORSItemListener
+    extends ItemListener
+{
+    private final static Logger LOG = Logger.getLogger("org.jenkinsci.plugins.cors.CORSPlugin");
+
+    @Override
+    public void onLoaded()
+    {
+        final CrossOriginFilter filter = filter();
+        if (filter == null)
+            return;
+        final Map<String,Map<String,String>> overrides = new HashMap<String,Map<String,String>>();
+        for (Job<?,?> job : Jenkins.getInstance().getAllItems(Job.class))
+        {
+            final CORSJobProperty property = job.getProperty(CORSJobProperty.class);
+            if (property != null)
+                overrides.put(urlOf(job), property.toParams());
+        }
+        LOG.config("loaded CORS overrides of " + overrides.size() + " jobs");
+        filter.setItemPolicies(overrides);
+    }
+
+    @Override
+    public void onCreated(Item item)
+    {
+        update(item);
+    }
+
+    @Override
+    public void onCopied(Item src, Item item)
+    {
+        update(item);
+    }
+
+    @Override
+    public void onUpdated(Item item)
+    {
+        update(item);
+    }
+
+    @Override
+    public void onRenamed(Item item, String oldName, String newName)
+    {
+        final CrossOriginFilter filter = filter();
+        if (filter == null)
+            return;
+        // the items below a renamed one have moved with it
+        filter.removeItemPolicies(parentUrlOf(item) + "job/" + Util.rawEncode(oldName) + "/");
+        register(filter, item, true);
+    }
+
+    @Override
+    public void onDeleted(Item item)
+    {
+        final CrossOriginFilter filter = filter();
+        if (filter != null)
+            filter.removeItemPolicies(urlOf(item));
+    }
+
+    private static void update(Item item)
+    {
+        final CrossOriginFilter filter = filter();
+        if (filter != null)
+            register(filter, item, false);
+    }
+
+    /**
+     * Sets or removes the override of <code>item</code>, and with
+     * <code>deep</code> those of all items below it.
+     */
+    private static void register(CrossOriginFilter filter, Item item, boolean deep)
+    {
+        if (item instanceof Job)
+        {
+            final CORSJobProperty property = ((Job<?,?>)item).getProperty(CORSJobProperty.class);
+            filter.setItemPolicy(urlOf(item), property == null ? null : property.toParams());
+        }
+        if (deep && item instanceof ItemGroup)
+        {
+            for (Object child : ((ItemGroup<?>)item).getItems())
+                register(filter, (Item)child, true);
+        }
+    }
+
+    /** @return the URL of <code>item</code> relative to the context path, such as <code>/job/foo/</code> */
+    static String urlOf(Item item)
+    {
+        return parentUrlOf(item) + item.getShortUrl();
+    }
+
+    private static String parentUrlOf(Item item)
+    {
+        final ItemGroup parent = item.getParent();
+        return parent instanceof Item ? urlOf((Item)parent) : "/";
+    }
+
+    /** @return the filter of the plugin, or null if it is not running */
+    private static CrossOriginFilter filter()
+    {
+        final CORSPlugin plugin = Jenkins.getInstance().getPlugin(CORSPlugin.class);
+        return plugin == null ? null : plugin.getFilter();
+    }
+}
@@ -0,0 +1,110 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.JobPropertyDescriptor;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+import net.sf.json.JSONObject;
+
+/**
+ * A CORS override on a job, which applies to the cross-origin requests
+ * under the URL of the job instead of the settings on the {@link CORSPlugin}
+ * config page. Blank fields fall back to the global settings, and so
+ * does Allow Credentials unless it is set to "true" or "false".
+ *
+ * <p>The filter learns about overrides from {@link CORSItemListener}, so
+ * requests never look up the job they are addressed to.</p>
+ */
+public class CORSJobProperty
+    extends JobProperty<Job<?,?>>
+{
+    /** Name of the optional block holding the override on the job config page. */
+    private static final String OVERRIDE_FIELD = "corsOverride";
+
+    private final String  allowedOrigins;
+    private final String  allowedMethods;
+    private final String  allowedHeaders;
+    private final String  preflightMaxAge;
+    /** "true", "false", or blank to fall back to the global setting; saved as a boolean before it could be blank. */
+    private final String  allowCredentials;
+    private final String  exposedHeaders;
+
+    @DataBoundConstructor
+    public CORSJobProperty(final String allowedOrigins,
+                           final String allowedMethods,
+                           final String allowedHeaders,
+                           final String preflightMaxAge,
+                           final String allowCredentials,
+                           final String exposedHeaders)
+    {
+        this.allowedOrigins   = allowedOrigins;
+        this.allowedMethods   = allowedMethods;
+        this.allowedHeaders   = allowedHeaders;
+        this.preflightMaxAge  = preflightMaxAge;
+        this.allowCredentials = allowCredentials;
+        this.exposedHeaders   = exposedHeaders;
+    }
+
+    public String getAllowedOrigins() { return this.allowedOrigins; }
+    public String getAllowedMethods() { return this.allowedMethods; }
+    public String getAllowedHeaders() { return this.allowedHeaders; }
+    public String getPreflightMaxAge() { return this.preflightMaxAge; }
+    public String getAllowCredentials() { return this.allowCredentials; }
+    public String getExposedHeaders() { return this.exposedHeaders; }
+
+    /**
+     * @return the parameters of this override, named as the global filter
+     *         parameters, for {@link CrossOriginFilter#setItemPolicy}
+     */
+    Map<String,String> toParams()
+    {
+        final Map<String,String> params = new HashMap<String,String>();
+        params.put(CrossOriginFilter.ALLOWED_ORIGINS_PARAM   , allowedOrigins );
+        params.put(CrossOriginFilter.ALLOWED_METHODS_PARAM   , allowedMethods );
+        params.put(CrossOriginFilter.ALLOWED_HEADERS_PARAM   , allowedHeaders );
+        params.put(CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM , preflightMaxAge );
+        params.put(CrossOriginFilter.ALLOW_CREDENTIALS_PARAM , allowCredentials );
+        params.put(CrossOriginFilter.EXPOSED_HEADERS_PARAM   , exposedHeaders );
+        return params;
+    }
+
+    public String toString() {
+        return CrossOriginFilter.ALLOWED_ORIGINS_PARAM   + "=" + allowedOrigins   + ", " +
+            CrossOriginFilter.ALLOWED_METHODS_PARAM   + "=" + allowedMethods   + ", " +
+            CrossOriginFilter.ALLOWED_HEADERS_PARAM   + "=" + allowedHeaders   + ", " +
+            CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM + "=" + preflightMaxAge  + ", " +
+            CrossOriginFilter.ALLOW_CREDENTIALS_PARAM + "=" + allowCredentials + ", " +
+            CrossOriginFilter.EXPOSED_HEADERS_PARAM   + "=" + exposedHeaders;
+    }
+
+    @Extension
+    public static final class DescriptorImpl
+        extends JobPropertyDescriptor
+    {
+        @Override
+        public String getDisplayName()
+        {
+            return "CORS override";
+        }
+
+        @Override
+        public boolean isApplicable(Class<? extends Job> jobType)
+        {
+            return true;
+        }
+
+        /** The override is an optional block, which submits nothing when unchecked. */
+        @Override
+        public JobProperty<?> newInstance(StaplerRequest req, JSONObject formData)
+        {
+            final JSONObject override = formData.optJSONObject(OVERRIDE_FIELD);
+            return (override == null || override.isNullObject()) ? null : req.bindJSON(CORSJobProperty.class, override);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.PrintWriter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Counts the decisions of a {@link CrossOriginFilter}, in total and
+ * per origin, and writes them in the Prometheus text exposition
+ * format.</p>
+ *
+ * <p>Counting is cheap enough to stay on in production: every counter is
+ * a {@link StripedCounter}, and the per-origin table never grows past
+ * twice {@link #TRACKED_ORIGINS} origins. New origins are admitted
+ * without locking until the table is full. It is then compacted, in the
+ * manner of the space-saving algorithm, by sorting it once and dropping
+ * the origins with the lowest estimated counts down to
+ * {@link #TRACKED_ORIGINS}. Their counts move to the origin "other", and
+ * origins admitted later inherit the highest estimate dropped as their
+ * error. A burst of junk Origin headers therefore only ever displaces the
+ * least busy origins, at the cost of one sort per
+ * {@link #TRACKED_ORIGINS} new origins. Only the request that finds the
+ * table full compacts it; requests for new origins arriving meanwhile
+ * never wait, and are counted under "other". Only the
+ * {@link #TOP_ORIGINS} origins with the most requests counted since they
+ * entered the table are written out; the rest are folded into "other"
+ * as well.</p>
+ *
+ * <p>The time the filter spends on each request, apart from the rest of
+ * the filter chain, goes into a {@link LatencyHistogram} per request
+ * class: requests the filter passes on untouched, allowed simple and
+ * non-simple requests, preflights, and rejected requests.</p>
+ *
+ * <p>The metrics belong to the filter rather than to its policy, so they
+ * keep counting across reconfigurations.</p>
+ */
+final class CORSMetrics
+{
+    static final int TOP_ORIGINS = Integer.getInteger(CORSMetrics.class.getName() + ".topOrigins", 20);
+    static final int TRACKED_ORIGINS = Math.max(TOP_ORIGINS * 10, 100);
+    /** The size at which the per-origin table is compacted back to {@link #TRACKED_ORIGINS}. */
+    private static final int MAX_TRACKED_ORIGINS = TRACKED_ORIGINS * 2;
+    static final String OTHER_ORIGIN = "other";
+
+    private static final CORSDecision[] DECISIONS = CORSDecision.values();
+    private static final Comparator<Map.Entry<String,Long>> BY_COUNT_DESCENDING = new Comparator<Map.Entry<String,Long>>()
+    {
+        public int compare(Map.Entry<String,Long> a, Map.Entry<String,Long> b)
+        {
+            return b.getValue().compareTo(a.getValue());
+        }
+    };
+
+    /** The request classes latency is recorded by, indexed by {@link #requestClass(CORSDecision)}. */
+    static final String[] REQUEST_CLASSES = { "no_origin", "simple", "preflight", "rejected" };
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    private final StripedCounter[] decisions = new StripedCounter[DECISIONS.length];
+    /** Rejected requests answered by the filter itself, indexed like {@link #decisions}. */
+    private final StripedCounter[] earlyRejects = new StripedCounter[DECISIONS.length];
+    /** The tracked origins; entries are added freely, but only removed while holding {@link #compaction}. */
+    private final ConcurrentHashMap<String,OriginCounters> origins = new ConcurrentHashMap<String,OriginCounters>();
+    /** The entries of {@link #origins}, and those about to be added; counting them separately avoids sizing the map on the request path. */
+    private final AtomicInteger trackedOrigins = new AtomicInteger();
+    private final ReentrantLock compaction = new ReentrantLock();
+    /** The error of newly admitted origins: the highest estimate dropped by the last compaction. */
+    private volatile long admissionError;
+    /**
+     * The counters dropped by the last compaction, guarded by
+     * {@link #compaction}. They are folded into {@link #otherOrigins} by
+     * the next compaction, once the requests that looked them up before
+     * they were dropped have long finished counting.
+     */
+    private List<OriginCounters> droppedOrigins = new ArrayList<OriginCounters>();
+    private final OriginCounters otherOrigins = new OriginCounters(0L);
+    private final LatencyHistogram[] latencies = new LatencyHistogram[REQUEST_CLASSES.length];
+
+    CORSMetrics()
+    {
+        for (int i = 0; i < decisions.length; ++i)
+        {
+            decisions[i] = new StripedCounter();
+            earlyRejects[i] = new StripedCounter();
+        }
+        for (int i = 0; i < latencies.length; ++i)
+            latencies[i] = new LatencyHistogram();
+    }
+
+    /**
+     * @param origin the raw Origin header, or null if there was none
+     */
+    void record(CORSDecision decision, String origin)
+    {
+        decisions[decision.ordinal()].increment();
+        if (origin != null)
+            countersFor(origin).increment(decision);
+    }
+
+    long count(CORSDecision decision)
+    {
+        return decisions[decision.ordinal()].sum();
+    }
+
+    /**
+     * Records that a request with a rejected <code>decision</code> was
+     * answered with a 403 instead of being passed down the filter chain.
+     */
+    void recordEarlyReject(CORSDecision decision)
+    {
+        earlyRejects[decision.ordinal()].increment();
+    }
+
+    long earlyRejectCount(CORSDecision decision)
+    {
+        return earlyRejects[decision.ordinal()].sum();
+    }
+
+    /**
+     * Records that the filter spent <code>nanos</code> on a request it
+     * decided as <code>decision</code>.
+     */
+    void recordLatency(CORSDecision decision, long nanos)
+    {
+        latencies[requestClass(decision)].record(nanos);
+    }
+
+    /** @return the latency histogram of the request class at <code>index</code> in {@link #REQUEST_CLASSES} */
+    LatencyHistogram latency(int index)
+    {
+        return latencies[index];
+    }
+
+    static int requestClass(CORSDecision decision)
+    {
+        switch (decision)
+        {
+        case SIMPLE_ALLOWED:
+        case NON_SIMPLE_ALLOWED:
+            return 1;
+        case PREFLIGHT_ALLOWED:
+        case PREFLIGHT_RATE_LIMITED:
+            return 2;
+        case ORIGIN_REJECTED:
+        case PREFLIGHT_REJECTED_METHOD:
+        case PREFLIGHT_REJECTED_HEADERS:
+            return 3;
+        default:
+            return 0;
+        }
+    }
+
+    private OriginCounters countersFor(String origin)
+    {
+        OriginCounters counters = origins.get(origin);
+        if (counters != null)
+            return counters;
+        if (trackedOrigins.incrementAndGet() > MAX_TRACKED_ORIGINS)
+        {
+            trackedOrigins.decrementAndGet();
+            // whoever compacts the table gets the next free entry; the
+            // others count under "other" rather than wait
+            if (!compaction.tryLock())
+                return otherOrigins;
+            try
+            {
+                compact();
+            }
+            finally
+            {
+                compaction.unlock();
+            }
+            if (trackedOrigins.incrementAndGet() > MAX_TRACKED_ORIGINS)
+            {
+                trackedOrigins.decrementAndGet();
+                return otherOrigins;
+            }
+        }
+        counters = new OriginCounters(admissionError);
+        OriginCounters existing = origins.putIfAbsent(origin, counters);
+        if (existing != null)
+        {
+            trackedOrigins.decrementAndGet();
+            return existing;
+        }
+        return counters;
+    }
+
+    /**
+     * Drops the origins with the lowest estimates until no more than
+     * {@link #TRACKED_ORIGINS} are left. Must hold {@link #compaction}.
+     */
+    private void compact()
+    {
+        for (OriginCounters dropped : droppedOrigins)
+            otherOrigins.add(dropped.counts());
+        droppedOrigins = new ArrayList<OriginCounters>();
+        List<Map.Entry<String,Long>> estimates = new ArrayList<Map.Entry<String,Long>>();
+        for (Map.Entry<String,OriginCounters> entry : origins.entrySet())
+            estimates.add(new AbstractMap.SimpleImmutableEntry<String,Long>(entry.getKey(), entry.getValue().estimate()));
+        if (estimates.size() <= TRACKED_ORIGINS)
+            return;
+        Collections.sort(estimates, BY_COUNT_DESCENDING);
+        long highestDropped = admissionError;
+        for (int i = TRACKED_ORIGINS; i < estimates.size(); ++i)
+        {
+            OriginCounters dropped = origins.remove(estimates.get(i).getKey());
+            if (dropped == null)
+                continue;
+            trackedOrigins.decrementAndGet();
+            droppedOrigins.add(dropped);
+            highestDropped = Math.max(highestDropped, estimates.get(i).getValue());
+        }
+        admissionError = highestDropped;
+    }
+
+    /**
+     * Writes all counters, and the cache statistics of
+     * <code>policy</code>, in the Prometheus text format (version 0.0.4).
+     */
+    void writeTo(PrintWriter out, CORSPolicy policy)
+    {
+        out.println("# HELP cors_requests_total Requests seen by the CORS filter, by decision.");
+        out.println("# TYPE cors_requests_total counter");
+        for (CORSDecision decision : DECISIONS)
+            out.println("cors_requests_total{decision=\"" + decision.label + "\"} " + count(decision));
+
+        out.println("# HELP cors_early_rejects_total Rejected cross-origin requests answered with a 403 by the CORS filter, by decision.");
+        out.println("# TYPE cors_early_rejects_total counter");
+        for (CORSDecision decision : DECISIONS)
+        {
+            if (decision.isRejected())
+                out.println("cors_early_rejects_total{decision=\"" + decision.label + "\"} " + earlyRejectCount(decision));
+        }
+
+        out.println("# HELP cors_origin_requests_total Cross-origin requests by origin and decision, for the busiest origins.");
+        out.println("# TYPE cors_origin_requests_total counter");
+        List<Map.Entry<String,Long>> totals = new ArrayList<Map.Entry<String,Long>>();
+        Map<String,OriginCounters> snapshot;
+        long[] other;
+        // a scrape may wait for a compaction; the request path never does
+        compaction.lock();
+        try
+        {
+            compact();
+            snapshot = new HashMap<String,OriginCounters>(origins);
+            other = otherOrigins.counts();
+            for (OriginCounters dropped : droppedOrigins)
+            {
+                long[] counts = dropped.counts();
+                for (int d = 0; d < other.length; ++d)
+                    other[d] += counts[d];
+            }
+        }
+        finally
+        {
+            compaction.unlock();
+        }
+        for (Map.Entry<String,OriginCounters> entry : snapshot.entrySet())
+            totals.add(new AbstractMap.SimpleImmutableEntry<String,Long>(entry.getKey(), entry.getValue().total()));
+        Collections.sort(totals, BY_COUNT_DESCENDING);
+        for (int i = 0; i < totals.size(); ++i)
+        {
+            String origin = totals.get(i).getKey();
+            long[] counts = snapshot.get(origin).counts();
+            if (i < TOP_ORIGINS)
+            {
+                writeOriginCounts(out, escape(origin), counts);
+            }
+            else
+            {
+                for (int d = 0; d < other.length; ++d)
+                    other[d] += counts[d];
+            }
+        }
+        writeOriginCounts(out, OTHER_ORIGIN, other);
+
+        out.println("# HELP cors_filter_latency_seconds Time spent in the CORS filter per request, excluding the rest of the filter chain, by request class.");
+        out.println("# TYPE cors_filter_latency_seconds summary");
+        for (int c = 0; c < REQUEST_CLASSES.length; ++c)
+        {
+            for (double quantile : QUANTILES)
+                out.println("cors_filter_latency_seconds{class=\"" + REQUEST_CLASSES[c] + "\",quantile=\"" + quantile + "\"} " + latencies[c].percentile(quantile) / 1e9);
+            out.println("cors_filter_latency_seconds_count{class=\"" + REQUEST_CLASSES[c] + "\"} " + latencies[c].count());
+        }
+
+        writeCache(out, "origin", policy.originCache);
+        writeCache(out, "preflight", policy.preflightCache);
+
+        out.println("# HELP cors_policy_generation Generation of the CORS policy in effect.");
+        out.println("# TYPE cors_policy_generation gauge");
+        out.println("cors_policy_generation " + policy.generation);
+    }
+
+    private static void writeOriginCounts(PrintWriter out, String origin, long[] counts)
+    {
+        for (int d = 0; d < counts.length; ++d)
+        {
+            if (counts[d] > 0)
+                out.println("cors_origin_requests_total{origin=\"" + origin + "\",decision=\"" + DECISIONS[d].label + "\"} " + counts[d]);
+        }
+    }
+
+    private static void writeCache(PrintWriter out, String name, BoundedCache<?,?> cache)
+    {
+        out.println("# HELP cors_" + name + "_cache_hits_total Hits in the " + name + " cache since the policy was last configured.");
+        out.println("# TYPE cors_" + name + "_cache_hits_total counter");
+        out.println("cors_" + name + "_cache_hits_total " + cache.getHitCount());
+        out.println("# HELP cors_" + name + "_cache_misses_total Misses in the " + name + " cache since the policy was last configured.");
+        out.println("# TYPE cors_" + name + "_cache_misses_total counter");
+        out.println("cors_" + name + "_cache_misses_total " + cache.getMissCount());
+        out.println("# HELP cors_" + name + "_cache_entries Entries in the " + name + " cache.");
+        out.println("# TYPE cors_" + name + "_cache_entries gauge");
+        out.println("cors_" + name + "_cache_entries " + cache.size());
+    }
+
+    /** Escapes a label value, which comes straight from a request header. */
+    private static String escape(String value)
+    {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); ++i)
+        {
+            char c = value.charAt(i);
+            if (c == '\\')
+                builder.append("\\\\");
+            else if (c == '"')
+                builder.append("\\\"");
+            else if (c == '\n')
+                builder.append("\\n");
+            else
+                builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Per-decision counters for one origin. Counters are only created for
+     * the decisions an origin actually gets, which is usually two or
+     * three of them.
+     */
+    private static final class OriginCounters
+    {
+        private static final int STRIPES = 4;
+
+        private final AtomicReferenceArray<StripedCounter> counters = new AtomicReferenceArray<StripedCounter>(DECISIONS.length);
+        /** The estimated count of the origin this one displaced, which it may have had before it was tracked. */
+        private final long error;
+
+        OriginCounters(long error)
+        {
+            this.error = error;
+        }
+
+        void increment(CORSDecision decision)
+        {
+            counter(decision.ordinal()).increment();
+        }
+
+        /** Adds <code>counts</code>, indexed like {@link #counts()}. */
+        void add(long[] counts)
+        {
+            for (int i = 0; i < counts.length; ++i)
+            {
+                if (counts[i] > 0)
+                    counter(i).add(counts[i]);
+            }
+        }
+
+        private StripedCounter counter(int i)
+        {
+            StripedCounter counter = counters.get(i);
+            if (counter == null)
+            {
+                counters.compareAndSet(i, null, new StripedCounter(STRIPES));
+                counter = counters.get(i);
+            }
+            return counter;
+        }
+
+        long[] counts()
+        {
+            long[] counts = new long[DECISIONS.length];
+            for (int i = 0; i < counts.length; ++i)
+            {
+                StripedCounter counter = counters.get(i);
+                counts[i] = counter == null ? 0L : counter.sum();
+            }
+            return counts;
+        }
+
+        /** @return the requests counted since the origin was tracked */
+        long total()
+        {
+            long total = 0L;
+            for (long count : counts())
+                total += count;
+            return total;
+        }
+
+        /** @return {@link #total()}, plus the requests the origin may have had before it was tracked */
+        long estimate()
+        {
+            return error + total();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Serves the counters of the {@link CrossOriginFilter} at
+ * <code>/cors-metrics/</code>, in the Prometheus text exposition format,
+ * so they can be scraped without turning on filter logging.
+ *
+ * <p>The per-origin counters name partner origins, so scraping requires
+ * the administer permission.</p>
+ */
+@Extension
+public class CORSMetricsAction implements RootAction
+{
+    public static final String URL_NAME = "cors-metrics";
+
+    /** No icon, so the action does not show up in the side panel. */
+    public String getIconFileName() { return null; }
+    public String getDisplayName() { return "CORS Metrics"; }
+    public String getUrlName() { return URL_NAME; }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException
+    {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        CORSPlugin plugin = Jenkins.getInstance().getPlugin(CORSPlugin.class);
+        CrossOriginFilter filter = plugin == null ? null : plugin.getFilter();
+        if (filter == null)
+        {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter out = rsp.getWriter();
+        filter.writeMetrics(out);
+        out.flush();
+    }
+}
@@ -1,7 +1,11 @@
 package org.jenkinsci.plugins.cors;
 
+import java.io.File;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletContext;
@@ -38,21 +42,58 @@ public class CORSPlugin
 
     // defaults
     private static final String  DEFAULT_ALLOWED_ORIGINS   = "*";
+    private static final String  DEFAULT_ALLOWED_ORIGINS_FILE = "";
     private static final String  DEFAULT_ALLOWED_METHODS   = "GET,POST,HEAD";
     private static final String  DEFAULT_ALLOWED_HEADERS   = "X-Requested-With,Content-Type,Accept,Origin,Authorization";
     private static final String  DEFAULT_PREFLIGHT_MAX_AGE = "1800";
     private static final boolean DEFAULT_ALLOW_CREDENTIALS = true;
     private static final String  DEFAULT_EXPOSED_HEADERS   = "";
     private static final boolean DEFAULT_CHAIN_PREFLIGHT   = false;
+    private static final boolean DEFAULT_REJECT_DISALLOWED = false;
+    private static final boolean DEFAULT_PROXY_CACHEABLE   = false;
+    private static final boolean DEFAULT_PREFLIGHT_CACHE_CONTROL = false;
+    private static final String  DEFAULT_ORIGIN_CACHE_SIZE = "1024";
+    private static final String  DEFAULT_PREFLIGHT_CACHE_SIZE = "1024";
+    private static final String  DEFAULT_PREFLIGHT_RATE_LIMIT = "0";
+    private static final String  DEFAULT_PREFLIGHT_BURST   = "10";
+    private static final String  DEFAULT_BYPASS_PATHS      = "";
+    private static final String  DEFAULT_TRACE_FILE        = "";
+    private static final String  DEFAULT_SHADOW_ALLOWED_ORIGINS = "";
+    private static final String  DEFAULT_SHADOW_ALLOWED_METHODS = "";
+    private static final String  DEFAULT_SHADOW_ALLOWED_HEADERS = "";
+    private static final String  DEFAULT_SHADOW_SAMPLE_RATE = "0";
+    private static final String  DEFAULT_ADAPTIVE_MAX_AGE_CAP = "0";
+
+    // form fields of the shadow policy
+    private static final String  SHADOW_ALLOWED_ORIGINS_FIELD = "shadowAllowedOrigins";
+    private static final String  SHADOW_ALLOWED_METHODS_FIELD = "shadowAllowedMethods";
+    private static final String  SHADOW_ALLOWED_HEADERS_FIELD = "shadowAllowedHeaders";
 
     // config fields, which should be serialized
     private String  allowedOrigins;
+    private String  allowedOriginsFile;
     private String  allowedMethods;
     private String  allowedHeaders;
     private String  preflightMaxAge;
     private boolean allowCredentials;
     private String  exposedHeaders;
     private boolean chainPreflight;
+    private boolean rejectDisallowed;
+    private boolean proxyCacheable;
+    private boolean preflightCacheControl;
+    private String  originCacheSize;
+    private String  preflightCacheSize;
+    private String  preflightRateLimit;
+    private String  preflightBurst;
+    private String  bypassPaths;
+    private String  traceFile;
+    private List<PathPolicy> pathPolicies;
+    private List<OriginPolicy> originPolicies;
+    private String  shadowAllowedOrigins;
+    private String  shadowAllowedMethods;
+    private String  shadowAllowedHeaders;
+    private String  shadowSampleRate;
+    private String  adaptiveMaxAgeCap;
 
     // internal state, which should not be serialized
     @XStreamOmitField
@@ -63,38 +104,97 @@ public class CORSPlugin
     public CORSPlugin()
     {
         this(DEFAULT_ALLOWED_ORIGINS,
+             DEFAULT_ALLOWED_ORIGINS_FILE,
              DEFAULT_ALLOWED_METHODS,
              DEFAULT_ALLOWED_HEADERS,
              DEFAULT_PREFLIGHT_MAX_AGE,
              DEFAULT_ALLOW_CREDENTIALS,
              DEFAULT_EXPOSED_HEADERS,
-             DEFAULT_CHAIN_PREFLIGHT);
+             DEFAULT_CHAIN_PREFLIGHT,
+             DEFAULT_REJECT_DISALLOWED,
+             DEFAULT_PROXY_CACHEABLE,
+             DEFAULT_PREFLIGHT_CACHE_CONTROL,
+             DEFAULT_ORIGIN_CACHE_SIZE,
+             DEFAULT_PREFLIGHT_CACHE_SIZE,
+             DEFAULT_PREFLIGHT_RATE_LIMIT,
+             DEFAULT_PREFLIGHT_BURST,
+             DEFAULT_BYPASS_PATHS,
+             DEFAULT_TRACE_FILE,
+             Collections.<PathPolicy>emptyList(),
+             DEFAULT_SHADOW_ALLOWED_ORIGINS,
+             DEFAULT_SHADOW_ALLOWED_METHODS,
+             DEFAULT_SHADOW_ALLOWED_HEADERS,
+             DEFAULT_SHADOW_SAMPLE_RATE,
+             Collections.<OriginPolicy>emptyList(),
+             DEFAULT_ADAPTIVE_MAX_AGE_CAP);
         LOG.finer("CORSPlugin.CORSPlugin() just finished calling CORSPlugin.CORSPlugin(args)");
     }
 
     @DataBoundConstructor
     public CORSPlugin(final String allowedOrigins,
+                      final String allowedOriginsFile,
                       final String allowedMethods,
                       final String allowedHeaders,
                       final String preflightMaxAge,
                       final boolean allowCredentials,
                       final String exposedHeaders,
-                      final boolean chainPreflight)
+                      final boolean chainPreflight,
+                      final boolean rejectDisallowed,
+                      final boolean proxyCacheable,
+                      final boolean preflightCacheControl,
+                      final String originCacheSize,
+                      final String preflightCacheSize,
+                      final String preflightRateLimit,
+                      final String preflightBurst,
+                      final String bypassPaths,
+                      final String traceFile,
+                      final List<PathPolicy> pathPolicies,
+                      final String shadowAllowedOrigins,
+                      final String shadowAllowedMethods,
+                      final String shadowAllowedHeaders,
+                      final String shadowSampleRate,
+                      final List<OriginPolicy> originPolicies,
+                      final String adaptiveMaxAgeCap)
     {
         super();
-        LOG.entering("CORSPlugin","CORSPlugin(:String,:String,:String,:String,:boolean,:String,:boolean)");
+        LOG.entering("CORSPlugin","CORSPlugin(:String,:String,:String,:String,:String,:boolean,:String,:boolean,:boolean,:boolean,:boolean,:String,:String,:String,:String,:String,:String,:List,:String,:String,:String,:String,:List,:String)");
         this.allowedOrigins   = allowedOrigins;
+        this.allowedOriginsFile = allowedOriginsFile;
         this.allowedMethods   = allowedMethods;
         this.allowedHeaders   = allowedHeaders;
         this.preflightMaxAge  = preflightMaxAge;
         this.allowCredentials = allowCredentials;
         this.exposedHeaders   = exposedHeaders;
         this.chainPreflight   = chainPreflight; 
-        LOG.exiting("CORSPlugin","CORSPlugin(:String,:String,:String,:String,:boolean,:String,:boolean)");
+        this.rejectDisallowed = rejectDisallowed;
+        this.proxyCacheable   = proxyCacheable;
+        this.preflightCacheControl = preflightCacheControl;
+        this.originCacheSize  = originCacheSize;
+        this.preflightCacheSize = preflightCacheSize;
+        this.preflightRateLimit = preflightRateLimit;
+        this.preflightBurst   = preflightBurst;
+        this.bypassPaths      = bypassPaths;
+        this.traceFile        = traceFile;
+        this.pathPolicies     = new ArrayList<PathPolicy>(pathPolicies);
+        this.shadowAllowedOrigins = shadowAllowedOrigins;
+        this.shadowAllowedMethods = shadowAllowedMethods;
+        this.shadowAllowedHeaders = shadowAllowedHeaders;
+        this.shadowSampleRate = shadowSampleRate;
+        this.originPolicies   = new ArrayList<OriginPolicy>(originPolicies);
+        this.adaptiveMaxAgeCap = adaptiveMaxAgeCap;
+        LOG.exiting("CORSPlugin","CORSPlugin(:String,:String,:String,:String,:String,:boolean,:String,:boolean,:boolean,:boolean,:boolean,:String,:String,:String,:String,:String,:String,:List,:String,:String,:String,:String,:List,:String)");
     }
 
     public boolean isChainPreflight() { return this.chainPreflight; }
     public void setChainPreflight(final boolean v) { this.chainPreflight = chainPreflight; }
+    public boolean isRejectDisallowed() { return this.rejectDisallowed; }
+    public void setRejectDisallowed(final boolean rejectDisallowed) { this.rejectDisallowed = rejectDisallowed; }
+    public boolean isProxyCacheable() { return this.proxyCacheable; }
+    public void setProxyCacheable(final boolean proxyCacheable) { this.proxyCacheable = proxyCacheable; }
+    public boolean isPreflightCacheControl() { return this.preflightCacheControl; }
+    public void setPreflightCacheControl(final boolean preflightCacheControl) { this.preflightCacheControl = preflightCacheControl; }
+    public String getAdaptiveMaxAgeCap() { return this.adaptiveMaxAgeCap; }
+    public void setAdaptiveMaxAgeCap(final String adaptiveMaxAgeCap) { this.adaptiveMaxAgeCap = adaptiveMaxAgeCap; }
     public boolean getAllowCredentials() {return this.allowCredentials;}
     public void isAllowCredentials(final boolean v) { this.allowCredentials = allowCredentials; }
     public String getAllowedOrigins() { 
@@ -106,6 +206,8 @@ public class CORSPlugin
         this.allowedOrigins = allowedOrigins;
         LOG.exiting("CORSPlugin","setAllowedOrigins");
     }
+    public String getAllowedOriginsFile() { return this.allowedOriginsFile; }
+    public void setAllowedOriginsFile(final String allowedOriginsFile) { this.allowedOriginsFile = allowedOriginsFile; }
     public String getAllowedMethods() { return this.allowedMethods; }
     public void setAllowedMethods(final String allowedMethods) { this.allowedMethods = allowedMethods; }
     public String getAllowedHeaders() { return this.allowedHeaders; }
@@ -114,6 +216,37 @@ public class CORSPlugin
     public void setPreflightMaxAge(final String preflightMaxAge) { this.preflightMaxAge = preflightMaxAge; }
     public String getExposedHeaders() { return this.exposedHeaders; }
     public void setExposedHeaders(final String exposedHeaders) { this.exposedHeaders = exposedHeaders; }
+    public String getOriginCacheSize() { return this.originCacheSize; }
+    public void setOriginCacheSize(final String originCacheSize) { this.originCacheSize = originCacheSize; }
+    public String getPreflightCacheSize() { return this.preflightCacheSize; }
+    public void setPreflightCacheSize(final String preflightCacheSize) { this.preflightCacheSize = preflightCacheSize; }
+    public String getPreflightRateLimit() { return this.preflightRateLimit; }
+    public void setPreflightRateLimit(final String preflightRateLimit) { this.preflightRateLimit = preflightRateLimit; }
+    public String getPreflightBurst() { return this.preflightBurst; }
+    public void setPreflightBurst(final String preflightBurst) { this.preflightBurst = preflightBurst; }
+    public String getBypassPaths() { return this.bypassPaths; }
+    public void setBypassPaths(final String bypassPaths) { this.bypassPaths = bypassPaths; }
+    public String getTraceFile() { return this.traceFile; }
+    public void setTraceFile(final String traceFile) { this.traceFile = traceFile; }
+    public List<PathPolicy> getPathPolicies() {
+        return this.pathPolicies == null ? Collections.<PathPolicy>emptyList() : Collections.unmodifiableList(this.pathPolicies);
+    }
+    public void setPathPolicies(final List<PathPolicy> pathPolicies) { this.pathPolicies = new ArrayList<PathPolicy>(pathPolicies); }
+    public List<OriginPolicy> getOriginPolicies() {
+        return this.originPolicies == null ? Collections.<OriginPolicy>emptyList() : Collections.unmodifiableList(this.originPolicies);
+    }
+    public void setOriginPolicies(final List<OriginPolicy> originPolicies) { this.originPolicies = new ArrayList<OriginPolicy>(originPolicies); }
+    public String getShadowAllowedOrigins() { return this.shadowAllowedOrigins; }
+    public void setShadowAllowedOrigins(final String shadowAllowedOrigins) { this.shadowAllowedOrigins = shadowAllowedOrigins; }
+    public String getShadowAllowedMethods() { return this.shadowAllowedMethods; }
+    public void setShadowAllowedMethods(final String shadowAllowedMethods) { this.shadowAllowedMethods = shadowAllowedMethods; }
+    public String getShadowAllowedHeaders() { return this.shadowAllowedHeaders; }
+    public void setShadowAllowedHeaders(final String shadowAllowedHeaders) { this.shadowAllowedHeaders = shadowAllowedHeaders; }
+    public String getShadowSampleRate() { return this.shadowSampleRate; }
+    public void setShadowSampleRate(final String shadowSampleRate) { this.shadowSampleRate = shadowSampleRate; }
+
+    /** @return the filter installed by this plugin, or null before {@link #start()} */
+    public CrossOriginFilter getFilter() { return this.filter; }
 
     /** {@inheritDoc} */
     @Override
@@ -134,51 +267,102 @@ public class CORSPlugin
             LOG.severe("error trying to load serialized plugin values");
         }
 
-        LOG.fine("creating CrossOriginFilter");
-        // create and install the filter
-        CrossOriginFilter myFilter = new CrossOriginFilter();
-        PluginServletFilter.addFilter(myFilter);
-        this.filter = myFilter;
-
-        LOG.exiting("CORSPlugin","start");
-    }
-
-    @Override
-    public void postInitialize() throws Exception {
-        super.postInitialize();
-        LOG.entering("CORSPlugin","postInitialize");
         // log config field values in the instance variables 
-        LOG.config("start() called with following state: " +
+        LOG.config("starting with following state: " +
                    CrossOriginFilter.ALLOWED_ORIGINS_PARAM   + "=" +  allowedOrigins   + ", " +
+                   CrossOriginFilter.ALLOWED_ORIGINS_FILE_PARAM + "=" + allowedOriginsFile + ", " +
                    CrossOriginFilter.ALLOWED_METHODS_PARAM   + "=" +  allowedMethods   + ", " +
                    CrossOriginFilter.ALLOWED_HEADERS_PARAM   + "=" +  allowedHeaders   + ", " +
                    CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM + "=" +  preflightMaxAge  + ", " +
                    CrossOriginFilter.ALLOW_CREDENTIALS_PARAM + "=" +  allowCredentials + ", " +
                    CrossOriginFilter.EXPOSED_HEADERS_PARAM   + "=" +  exposedHeaders   + ", " +
-                   CrossOriginFilter.CHAIN_PREFLIGHT_PARAM   + "=" +  chainPreflight)   ;
+                   CrossOriginFilter.CHAIN_PREFLIGHT_PARAM   + "=" +  chainPreflight   + ", " +
+                   CrossOriginFilter.REJECT_DISALLOWED_PARAM + "=" +  rejectDisallowed + ", " +
+                   CrossOriginFilter.PROXY_CACHEABLE_PARAM   + "=" +  proxyCacheable   + ", " +
+                   CrossOriginFilter.PREFLIGHT_CACHE_CONTROL_PARAM + "=" + preflightCacheControl + ", " +
+                   CrossOriginFilter.ADAPTIVE_MAX_AGE_CAP_PARAM + "=" + adaptiveMaxAgeCap + ", " +
+                   CrossOriginFilter.ORIGIN_CACHE_SIZE_PARAM + "=" +  originCacheSize  + ", " +
+                   CrossOriginFilter.PREFLIGHT_CACHE_SIZE_PARAM + "=" + preflightCacheSize + ", " +
+                   CrossOriginFilter.PREFLIGHT_RATE_LIMIT_PARAM + "=" + preflightRateLimit + ", " +
+                   CrossOriginFilter.PREFLIGHT_BURST_PARAM   + "=" +  preflightBurst   + ", " +
+                   CrossOriginFilter.BYPASS_PATHS_PARAM      + "=" +  bypassPaths      + ", " +
+                   CrossOriginFilter.TRACE_FILE_PARAM        + "=" +  traceFile        + ", " +
+                   "pathPolicies="                               +  getPathPolicies() + ", " +
+                   SHADOW_ALLOWED_ORIGINS_FIELD              + "=" +  shadowAllowedOrigins + ", " +
+                   SHADOW_ALLOWED_METHODS_FIELD              + "=" +  shadowAllowedMethods + ", " +
+                   SHADOW_ALLOWED_HEADERS_FIELD              + "=" +  shadowAllowedHeaders + ", " +
+                   CrossOriginFilter.SHADOW_SAMPLE_RATE_PARAM + "=" + shadowSampleRate + ", " +
+                   "originPolicies="                             +  getOriginPolicies());
 
-        // generate a FilterConfigWrapper from this's state
-        FilterConfigWrapper configWrapper = createFilterConfigWrapper();
-        filter.init(configWrapper);
-        LOG.exiting("CORSPlugin","postInitialize");
+        // compile the saved configuration before the filter is installed,
+        // so that it never serves requests with an empty policy
+        LOG.fine("creating CrossOriginFilter");
+        CrossOriginFilter myFilter = new CrossOriginFilter();
+        myFilter.reconfigure(createFilterConfigWrapper());
+        PluginServletFilter.addFilter(myFilter);
+        this.filter = myFilter;
+
+        LOG.exiting("CORSPlugin","start");
     }
 
     private FilterConfigWrapper createFilterConfigWrapper() {
         // put plugin's config properties in a Map
         final Map<String,String> paramMap = new HashMap<String,String>() {{
                 put(CrossOriginFilter.ALLOWED_ORIGINS_PARAM   , allowedOrigins );
+                put(CrossOriginFilter.ALLOWED_ORIGINS_FILE_PARAM , resolveFile(allowedOriginsFile) );
                 put(CrossOriginFilter.ALLOWED_METHODS_PARAM   , allowedMethods );
                 put(CrossOriginFilter.ALLOWED_HEADERS_PARAM   , allowedHeaders );
                 put(CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM , preflightMaxAge );
                 put(CrossOriginFilter.ALLOW_CREDENTIALS_PARAM , (allowCredentials ? "true" : "false") );
                 put(CrossOriginFilter.EXPOSED_HEADERS_PARAM   , exposedHeaders );
                 put(CrossOriginFilter.CHAIN_PREFLIGHT_PARAM   , (chainPreflight ? "true" : "false") );
+                put(CrossOriginFilter.REJECT_DISALLOWED_PARAM , (rejectDisallowed ? "true" : "false") );
+                put(CrossOriginFilter.PROXY_CACHEABLE_PARAM   , (proxyCacheable ? "true" : "false") );
+                put(CrossOriginFilter.PREFLIGHT_CACHE_CONTROL_PARAM , (preflightCacheControl ? "true" : "false") );
+                put(CrossOriginFilter.ADAPTIVE_MAX_AGE_CAP_PARAM , nonNull(adaptiveMaxAgeCap) );
+                put(CrossOriginFilter.ORIGIN_CACHE_SIZE_PARAM , originCacheSize );
+                put(CrossOriginFilter.PREFLIGHT_CACHE_SIZE_PARAM , preflightCacheSize );
+                put(CrossOriginFilter.PREFLIGHT_RATE_LIMIT_PARAM , preflightRateLimit );
+                put(CrossOriginFilter.PREFLIGHT_BURST_PARAM   , preflightBurst );
+                put(CrossOriginFilter.BYPASS_PATHS_PARAM      , bypassPaths );
+                put(CrossOriginFilter.TRACE_FILE_PARAM        , resolveFile(traceFile) );
+                put(CrossOriginFilter.SHADOW_PARAM_PREFIX + CrossOriginFilter.ALLOWED_ORIGINS_PARAM , nonNull(shadowAllowedOrigins) );
+                put(CrossOriginFilter.SHADOW_PARAM_PREFIX + CrossOriginFilter.ALLOWED_METHODS_PARAM , nonNull(shadowAllowedMethods) );
+                put(CrossOriginFilter.SHADOW_PARAM_PREFIX + CrossOriginFilter.ALLOWED_HEADERS_PARAM , nonNull(shadowAllowedHeaders) );
+                put(CrossOriginFilter.SHADOW_SAMPLE_RATE_PARAM , nonNull(shadowSampleRate) );
             }};
+        final List<PathPolicy> pathPolicies = getPathPolicies();
+        for (int i = 0; i < pathPolicies.size(); ++i)
+            pathPolicies.get(i).putParams(paramMap, i);
+        final List<OriginPolicy> originPolicies = getOriginPolicies();
+        for (int i = 0; i < originPolicies.size(); ++i)
+            originPolicies.get(i).putParams(paramMap, i);
         // wrap them in a FilterConfigWrapper, with the servlet context
         final FilterConfigWrapper configWrapper = new FilterConfigWrapper("filterName",this.context,paramMap);
         return configWrapper;
     }
 
+    /**
+     * @return <code>value</code>, or "" for settings saved before the
+     *         field existed
+     */
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+
+    /**
+     * @return <code>path</code>, resolved against JENKINS_HOME if it is
+     *         relative, or "" if it is not set
+     */
+    private static String resolveFile(String path) {
+        if (path == null || path.trim().length() == 0)
+            return "";
+        File file = new File(path.trim());
+        if (!file.isAbsolute())
+            file = new File(Jenkins.getInstance().getRootDir(), file.getPath());
+        return file.getPath();
+    }
+
     /** {@inheritDoc} */
     @Override
     public void stop() throws Exception {
@@ -198,29 +382,104 @@ public class CORSPlugin
         LOG.entering("CORSPlugin","configure");
         LOG.config("configure() called with form data: " + 
                    CrossOriginFilter.ALLOWED_ORIGINS_PARAM   + "=" + formData.getString(  CrossOriginFilter.ALLOWED_ORIGINS_PARAM) + ", " +
+                   CrossOriginFilter.ALLOWED_ORIGINS_FILE_PARAM + "=" + formData.getString(CrossOriginFilter.ALLOWED_ORIGINS_FILE_PARAM) + ", " +
                    CrossOriginFilter.ALLOWED_METHODS_PARAM   + "=" + formData.getString(  CrossOriginFilter.ALLOWED_METHODS_PARAM) + ", " +
                    CrossOriginFilter.ALLOWED_HEADERS_PARAM   + "=" + formData.getString(  CrossOriginFilter.ALLOWED_HEADERS_PARAM) + ", " +
                    CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM + "=" + formData.getString(CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM) + ", " +
                    CrossOriginFilter.ALLOW_CREDENTIALS_PARAM + "=" + formData.getString(CrossOriginFilter.ALLOW_CREDENTIALS_PARAM) + ", " +
                    CrossOriginFilter.EXPOSED_HEADERS_PARAM   + "=" + formData.getString(  CrossOriginFilter.EXPOSED_HEADERS_PARAM) + ", " +
-                   CrossOriginFilter.CHAIN_PREFLIGHT_PARAM   + "=" + formData.getString(  CrossOriginFilter.CHAIN_PREFLIGHT_PARAM) );
+                   CrossOriginFilter.CHAIN_PREFLIGHT_PARAM   + "=" + formData.getString(  CrossOriginFilter.CHAIN_PREFLIGHT_PARAM) + ", " +
+                   CrossOriginFilter.REJECT_DISALLOWED_PARAM + "=" + formData.getString(CrossOriginFilter.REJECT_DISALLOWED_PARAM) + ", " +
+                   CrossOriginFilter.PROXY_CACHEABLE_PARAM   + "=" + formData.getString(  CrossOriginFilter.PROXY_CACHEABLE_PARAM) + ", " +
+                   CrossOriginFilter.PREFLIGHT_CACHE_CONTROL_PARAM + "=" + formData.getString(CrossOriginFilter.PREFLIGHT_CACHE_CONTROL_PARAM) + ", " +
+                   CrossOriginFilter.ADAPTIVE_MAX_AGE_CAP_PARAM + "=" + formData.getString(CrossOriginFilter.ADAPTIVE_MAX_AGE_CAP_PARAM) + ", " +
+                   CrossOriginFilter.ORIGIN_CACHE_SIZE_PARAM + "=" + formData.getString(CrossOriginFilter.ORIGIN_CACHE_SIZE_PARAM) + ", " +
+                   CrossOriginFilter.PREFLIGHT_CACHE_SIZE_PARAM + "=" + formData.getString(CrossOriginFilter.PREFLIGHT_CACHE_SIZE_PARAM) + ", " +
+                   CrossOriginFilter.PREFLIGHT_RATE_LIMIT_PARAM + "=" + formData.getString(CrossOriginFilter.PREFLIGHT_RATE_LIMIT_PARAM) + ", " +
+                   CrossOriginFilter.PREFLIGHT_BURST_PARAM   + "=" + formData.getString(  CrossOriginFilter.PREFLIGHT_BURST_PARAM) + ", " +
+                   CrossOriginFilter.BYPASS_PATHS_PARAM      + "=" + formData.getString(     CrossOriginFilter.BYPASS_PATHS_PARAM) + ", " +
+                   CrossOriginFilter.TRACE_FILE_PARAM        + "=" + formData.getString(       CrossOriginFilter.TRACE_FILE_PARAM) + ", " +
+                   "pathPolicies="                               + formData.opt("pathPolicies") + ", " +
+                   SHADOW_ALLOWED_ORIGINS_FIELD              + "=" + formData.getString(SHADOW_ALLOWED_ORIGINS_FIELD) + ", " +
+                   SHADOW_ALLOWED_METHODS_FIELD              + "=" + formData.getString(SHADOW_ALLOWED_METHODS_FIELD) + ", " +
+                   SHADOW_ALLOWED_HEADERS_FIELD              + "=" + formData.getString(SHADOW_ALLOWED_HEADERS_FIELD) + ", " +
+                   CrossOriginFilter.SHADOW_SAMPLE_RATE_PARAM + "=" + formData.getString(CrossOriginFilter.SHADOW_SAMPLE_RATE_PARAM) + ", " +
+                   "originPolicies="                             + formData.opt("originPolicies") );
         
         LOG.config("configure called with formData.getString(\"name\") = " + formData.getString("name"));
 
-        allowedOrigins   =   formData.getString(  CrossOriginFilter.ALLOWED_ORIGINS_PARAM);
-        allowedMethods   =   formData.getString(  CrossOriginFilter.ALLOWED_METHODS_PARAM);
-        allowedHeaders   =   formData.getString(  CrossOriginFilter.ALLOWED_HEADERS_PARAM);
-        preflightMaxAge  =   formData.getString(CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM);
-        allowCredentials =   formData.getString(CrossOriginFilter.ALLOW_CREDENTIALS_PARAM).equals("true");
-        exposedHeaders   =   formData.getString(  CrossOriginFilter.EXPOSED_HEADERS_PARAM);
-        chainPreflight   =   formData.getString(  CrossOriginFilter.CHAIN_PREFLIGHT_PARAM).equals("true");
+        // a repeatable section submits nothing, one object or an array of them
+        final Object pathPoliciesData = formData.opt("pathPolicies");
+        final Object originPoliciesData = formData.opt("originPolicies");
+        final CORSPlugin submitted = new CORSPlugin(
+            formData.getString(  CrossOriginFilter.ALLOWED_ORIGINS_PARAM),
+            formData.getString(CrossOriginFilter.ALLOWED_ORIGINS_FILE_PARAM),
+            formData.getString(  CrossOriginFilter.ALLOWED_METHODS_PARAM),
+            formData.getString(  CrossOriginFilter.ALLOWED_HEADERS_PARAM),
+            formData.getString(CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM),
+            formData.getString(CrossOriginFilter.ALLOW_CREDENTIALS_PARAM).equals("true"),
+            formData.getString(  CrossOriginFilter.EXPOSED_HEADERS_PARAM),
+            formData.getString(  CrossOriginFilter.CHAIN_PREFLIGHT_PARAM).equals("true"),
+            formData.getString(CrossOriginFilter.REJECT_DISALLOWED_PARAM).equals("true"),
+            formData.getString(  CrossOriginFilter.PROXY_CACHEABLE_PARAM).equals("true"),
+            formData.getString(CrossOriginFilter.PREFLIGHT_CACHE_CONTROL_PARAM).equals("true"),
+            formData.getString(CrossOriginFilter.ORIGIN_CACHE_SIZE_PARAM),
+            formData.getString(CrossOriginFilter.PREFLIGHT_CACHE_SIZE_PARAM),
+            formData.getString(CrossOriginFilter.PREFLIGHT_RATE_LIMIT_PARAM),
+            formData.getString(  CrossOriginFilter.PREFLIGHT_BURST_PARAM),
+            formData.getString(     CrossOriginFilter.BYPASS_PATHS_PARAM),
+            formData.getString(       CrossOriginFilter.TRACE_FILE_PARAM),
+            (pathPoliciesData == null) ? Collections.<PathPolicy>emptyList()
+                                       : req.bindJSONToList(PathPolicy.class, pathPoliciesData),
+            formData.getString(SHADOW_ALLOWED_ORIGINS_FIELD),
+            formData.getString(SHADOW_ALLOWED_METHODS_FIELD),
+            formData.getString(SHADOW_ALLOWED_HEADERS_FIELD),
+            formData.getString(CrossOriginFilter.SHADOW_SAMPLE_RATE_PARAM),
+            (originPoliciesData == null) ? Collections.<OriginPolicy>emptyList()
+                                         : req.bindJSONToList(OriginPolicy.class, originPoliciesData),
+            formData.getString(CrossOriginFilter.ADAPTIVE_MAX_AGE_CAP_PARAM));
+        submitted.context = this.context;
+
+        // reject invalid values before anything is assigned or saved,
+        // rather than have the filter log them and fall back to the defaults
+        FilterConfigWrapper configWrapper = submitted.createFilterConfigWrapper();
+        try {
+            CORSPolicy.validate(configWrapper);
+        } catch (CORSPolicy.InvalidParameterException x) {
+            LOG.info("rejecting configuration, " + x.getMessage());
+            throw new FormException(x.getMessage(), x, x.param);
+        }
+
+        allowedOrigins   =   submitted.allowedOrigins;
+        allowedOriginsFile = submitted.allowedOriginsFile;
+        allowedMethods   =   submitted.allowedMethods;
+        allowedHeaders   =   submitted.allowedHeaders;
+        preflightMaxAge  =   submitted.preflightMaxAge;
+        allowCredentials =   submitted.allowCredentials;
+        exposedHeaders   =   submitted.exposedHeaders;
+        chainPreflight   =   submitted.chainPreflight;
+        rejectDisallowed =   submitted.rejectDisallowed;
+        proxyCacheable   =   submitted.proxyCacheable;
+        preflightCacheControl = submitted.preflightCacheControl;
+        adaptiveMaxAgeCap =  submitted.adaptiveMaxAgeCap;
+        originCacheSize  =   submitted.originCacheSize;
+        preflightCacheSize = submitted.preflightCacheSize;
+        preflightRateLimit = submitted.preflightRateLimit;
+        preflightBurst   =   submitted.preflightBurst;
+        bypassPaths      =   submitted.bypassPaths;
+        traceFile        =   submitted.traceFile;
+        pathPolicies     =   submitted.pathPolicies;
+        originPolicies   =   submitted.originPolicies;
+        shadowAllowedOrigins = submitted.shadowAllowedOrigins;
+        shadowAllowedMethods = submitted.shadowAllowedMethods;
+        shadowAllowedHeaders = submitted.shadowAllowedHeaders;
+        shadowSampleRate =   submitted.shadowSampleRate;
 
         LOG.finer("saving() new config values");
         save();
 
         LOG.finer("re-initializaing filter with new values");
-        FilterConfigWrapper configWrapper = createFilterConfigWrapper();
-        this.filter.init(configWrapper);
+        this.filter.reconfigure(configWrapper);
 
         LOG.exiting("CORSPlugin","configure");
         return ;
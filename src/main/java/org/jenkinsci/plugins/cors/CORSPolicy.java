@@ -0,0 +1,607 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.servlet.FilterConfig;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import static org.jenkinsci.plugins.cors.CrossOriginFilter.*;
+
+/**
+ * <p>An immutable snapshot of the configuration of a
+ * {@link CrossOriginFilter}.</p>
+ *
+ * <p>The filter holds its current policy in a single volatile field. A
+ * reconfiguration compiles a complete new policy and then swaps it in,
+ * so a request thread reads the policy once and works against a
+ * consistent view for the rest of the request, without taking any
+ * lock, while requests already in flight finish on the policy they
+ * started with.</p>
+ */
+final class CORSPolicy
+{
+    private static final Logger LOG = Logger.getLogger("org.jenkins.ci.plugins.cors.CrossOriginFilter");
+
+    /**
+     * The most entries the origin and preflight caches of an item policy
+     * hold: there may be thousands of items, each reached by a handful of
+     * origins.
+     */
+    static final int ITEM_CACHE_SIZE = Integer.getInteger(CORSPolicy.class.getName() + ".itemCacheSize", 32);
+
+    /** The policy of a filter that has not been initialized, or has been destroyed: no origin is allowed. */
+    static final CORSPolicy EMPTY = new CORSPolicy(0L, "none", false, false, Collections.<String>emptyList(),
+                                                   Collections.<String>emptyList(), Collections.<String>emptyList(),
+                                                   Collections.<String>emptyList(), 0, false, false, false, false, false, 0, 0, 0,
+                                                   PreflightRateLimiter.UNLIMITED, PackedOriginSet.EMPTY, new PathTrie<CORSPolicy>(), null, OriginPolicyTable.EMPTY);
+
+    /** The policy of paths on the bypass list: requests go straight down the filter chain. */
+    static final CORSPolicy BYPASS = new CORSPolicy(0L, "bypass", true, false, Collections.<String>emptyList(),
+                                                    Collections.<String>emptyList(), Collections.<String>emptyList(),
+                                                    Collections.<String>emptyList(), 0, false, false, false, false, false, 0, 0, 0,
+                                                    PreflightRateLimiter.UNLIMITED, PackedOriginSet.EMPTY, new PathTrie<CORSPolicy>(), null, OriginPolicyTable.EMPTY);
+
+    final long generation;
+    /** {@link #generation}, boxed once so it can be handed out per request without allocating. */
+    final Long generationValue;
+    /** Which part of the configuration this policy comes from: "global", "shadow", or the path prefix or origins it is bound to. */
+    final String scope;
+    final boolean bypass;
+    final boolean anyOriginAllowed;
+    final List<String> allowedOrigins;
+    final OriginMatcher originMatcher;
+    final List<String> allowedMethods;
+    final List<String> allowedHeaders;
+    /** {@link #allowedHeaders}, for checking request header names */
+    final HeaderNameSet allowedHeaderNames;
+    final List<String> exposedHeaders;
+    /**
+     * {@link #allowedMethods}, {@link #allowedHeaders} and {@link #exposedHeaders}
+     * as response header values, which only change with the configuration
+     */
+    final String allowedMethodsValue;
+    final String allowedHeadersValue;
+    final String exposedHeadersValue;
+    final int preflightMaxAge;
+    final boolean allowCredentials;
+    final boolean chainPreflight;
+    /** Whether rejected cross-origin requests are answered with a 403 instead of being passed on. */
+    final boolean rejectDisallowed;
+    /** Whether responses carry the Vary headers a caching proxy needs. */
+    final boolean proxyCacheable;
+    /** Whether allowed preflights carry a Cache-Control matching {@link #preflightMaxAge}. */
+    final boolean preflightCacheControl;
+    /** The highest max age granted to stable origins, in seconds; no more than {@link #preflightMaxAge} turns adaptation off. */
+    final int adaptiveMaxAgeCap;
+    /** Verdicts of {@link CrossOriginFilter} for raw Origin header values, discarded along with the policy. */
+    final BoundedCache<String,Boolean> originCache;
+    /** Responses of {@link CrossOriginFilter} to preflight shapes, discarded along with the policy. */
+    final BoundedCache<PreflightResponse.Key,PreflightResponse> preflightCache;
+    /** How long each origin's preflights have been allowed under this policy, for adapting the max age; discarded along with the policy. */
+    final BoundedCache<String,PreflightAnalytics.Stability> preflightStability;
+    /** Per-origin preflight buckets, discarded along with the policy. */
+    final PreflightRateLimiter preflightLimiter;
+    /** The policies bound to path prefixes, which take precedence over this one; empty for those policies themselves. */
+    private final PathTrie<CORSPolicy> routes;
+    /** The policy evaluated next to this one on sampled requests, or null; only ever set on the global policy. */
+    final ShadowPolicy shadow;
+    /** The policies configured for particular origins, which take precedence over this one; only ever filled on the global policy. */
+    private final OriginPolicyTable originPolicies;
+
+    private CORSPolicy(long generation,
+                       String scope,
+                       boolean bypass,
+                       boolean anyOriginAllowed,
+                       List<String> allowedOrigins,
+                       List<String> allowedMethods,
+                       List<String> allowedHeaders,
+                       List<String> exposedHeaders,
+                       int preflightMaxAge,
+                       boolean allowCredentials,
+                       boolean chainPreflight,
+                       boolean rejectDisallowed,
+                       boolean proxyCacheable,
+                       boolean preflightCacheControl,
+                       int adaptiveMaxAgeCap,
+                       int originCacheSize,
+                       int preflightCacheSize,
+                       PreflightRateLimiter preflightLimiter,
+                       PackedOriginSet listedOrigins,
+                       PathTrie<CORSPolicy> routes,
+                       ShadowPolicy shadow,
+                       OriginPolicyTable originPolicies)
+    {
+        this.generation = generation;
+        this.generationValue = Long.valueOf(generation);
+        this.scope = scope;
+        this.bypass = bypass;
+        this.anyOriginAllowed = anyOriginAllowed;
+        this.allowedOrigins = Collections.unmodifiableList(new ArrayList<String>(allowedOrigins));
+        this.originMatcher = OriginMatcher.compile(this.allowedOrigins, listedOrigins);
+        this.allowedMethods = Collections.unmodifiableList(new ArrayList<String>(allowedMethods));
+        this.allowedHeaders = Collections.unmodifiableList(new ArrayList<String>(allowedHeaders));
+        this.allowedHeaderNames = new HeaderNameSet(this.allowedHeaders);
+        this.exposedHeaders = Collections.unmodifiableList(new ArrayList<String>(exposedHeaders));
+        this.allowedMethodsValue = commify(this.allowedMethods);
+        this.allowedHeadersValue = commify(this.allowedHeaders);
+        this.exposedHeadersValue = commify(this.exposedHeaders);
+        this.preflightMaxAge = preflightMaxAge;
+        this.allowCredentials = allowCredentials;
+        this.chainPreflight = chainPreflight;
+        this.rejectDisallowed = rejectDisallowed;
+        this.proxyCacheable = proxyCacheable;
+        this.preflightCacheControl = preflightCacheControl;
+        this.adaptiveMaxAgeCap = adaptiveMaxAgeCap;
+        this.originCache = new BoundedCache<String,Boolean>(originCacheSize);
+        this.preflightCache = new BoundedCache<PreflightResponse.Key,PreflightResponse>(preflightCacheSize);
+        this.preflightStability = new BoundedCache<String,PreflightAnalytics.Stability>(adaptsMaxAge() ? originCacheSize : 0);
+        this.preflightLimiter = preflightLimiter;
+        this.routes = routes;
+        this.shadow = shadow;
+        this.originPolicies = originPolicies;
+    }
+
+    /** @return whether stable origins may be granted more than {@link #preflightMaxAge} */
+    boolean adaptsMaxAge()
+    {
+        return preflightMaxAge > 0 && adaptiveMaxAgeCap > preflightMaxAge;
+    }
+
+    /**
+     * @param path the request URI
+     * @param from the index in <code>path</code> where the path within the
+     *             web application starts, i.e. the length of the context path
+     * @return the policy bound to the most specific prefix of the path,
+     *         {@link #BYPASS} if that prefix is on the bypass list, or this
+     *         policy if no prefix matches
+     */
+    CORSPolicy forPath(String path, int from)
+    {
+        if (routes.isEmpty())
+            return this;
+        CORSPolicy policy = routes.lookup(path, from);
+        return policy == null ? this : policy;
+    }
+
+    /**
+     * @param origin the raw Origin header of a cross-origin request
+     * @return the policy configured for <code>origin</code>, or this
+     *         policy if no origin policy lists it
+     */
+    CORSPolicy forOrigin(String origin)
+    {
+        if (originPolicies.isEmpty())
+            return this;
+        return originPolicies.resolve(origin, this);
+    }
+
+    /**
+     * Reads the filter parameters from <code>config</code>, falling back
+     * to the filter defaults for any parameter that is not set, along with
+     * the bypass list, the path policies and the origin policies. If the
+     * shadow sample rate is set, the <code>shadow.</code> parameters are
+     * compiled into the {@link ShadowPolicy} of the global policy, also
+     * falling back to the global parameters.
+     *
+     * @param listedOrigins the origins of the allowed origins file, which
+     *                      are allowed by the global policy and by the
+     *                      path policies that do not set their own
+     *                      allowed origins
+     */
+    static CORSPolicy compile(FilterConfig config, long generation, PackedOriginSet listedOrigins)
+    {
+        PathTrie<CORSPolicy> routes = new PathTrie<CORSPolicy>();
+        String bypassPathsConfig = config.getInitParameter(BYPASS_PATHS_PARAM);
+        if (bypassPathsConfig != null)
+        {
+            for (String bypassPath : bypassPathsConfig.split("[,\\s]+"))
+            {
+                if (bypassPath.length() > 0)
+                    routes.put(bypassPath, BYPASS);
+            }
+        }
+        for (int i = 0; ; ++i)
+        {
+            String prefix = PATH_POLICY_PARAM_PREFIX + i + ".";
+            String path = config.getInitParameter(prefix + PATH_PARAM);
+            if (path == null)
+                break;
+            path = path.trim();
+            if (path.length() > 0)
+                routes.put(path, compile(config, prefix, generation, listedOrigins, new PathTrie<CORSPolicy>(), null, OriginPolicyTable.EMPTY, null));
+        }
+        // origin policies share the buckets of the global policy, which
+        // are per origin anyway, rather than each holding a table of them
+        PreflightRateLimiter preflightLimiter = compileLimiter(config);
+        String originCacheSizeConfig = config.getInitParameter(ORIGIN_CACHE_SIZE_PARAM);
+        if (originCacheSizeConfig == null)
+            originCacheSizeConfig = DEFAULT_ORIGIN_CACHE_SIZE;
+        OriginPolicyTable originPolicies = new OriginPolicyTable(parseInteger(ORIGIN_CACHE_SIZE_PARAM, originCacheSizeConfig, DEFAULT_ORIGIN_CACHE_SIZE));
+        for (int i = 0; ; ++i)
+        {
+            String prefix = ORIGIN_POLICY_PARAM_PREFIX + i + ".";
+            String origins = config.getInitParameter(prefix + ALLOWED_ORIGINS_PARAM);
+            if (origins == null)
+                break;
+            if (origins.trim().length() > 0)
+                originPolicies.put(compile(config, prefix, generation, listedOrigins, new PathTrie<CORSPolicy>(), null, OriginPolicyTable.EMPTY, preflightLimiter));
+        }
+        ShadowPolicy shadow = null;
+        String shadowSampleRateConfig = config.getInitParameter(SHADOW_SAMPLE_RATE_PARAM);
+        if (shadowSampleRateConfig == null)
+            shadowSampleRateConfig = DEFAULT_SHADOW_SAMPLE_RATE;
+        double shadowSampleRate = 0;
+        try
+        {
+            shadowSampleRate = Double.parseDouble(shadowSampleRateConfig.trim());
+        }
+        catch (NumberFormatException x)
+        {
+            LOG.log(Level.INFO,"Cross-origin filter, could not parse '{0}' parameter as a number: {1}", new Object[]{SHADOW_SAMPLE_RATE_PARAM, shadowSampleRateConfig});
+        }
+        if (shadowSampleRate > 0)
+            shadow = new ShadowPolicy(compile(config, SHADOW_PARAM_PREFIX, generation, listedOrigins, new PathTrie<CORSPolicy>(), null, OriginPolicyTable.EMPTY, null), shadowSampleRate);
+        return compile(config, "", generation, listedOrigins, routes, shadow, originPolicies, preflightLimiter);
+    }
+
+    /**
+     * Compiles the override of a Jenkins item, whose parameters are those
+     * under {@link CrossOriginFilter#ITEM_PARAM_PREFIX} and whose URL
+     * prefix is <code>item.path</code>, falling back to the global
+     * parameters like a path policy. Its caches hold at most
+     * {@link #ITEM_CACHE_SIZE} entries each.
+     *
+     * @param preflightLimiter the limiter of the global policy, whose
+     *                         buckets are per origin, so that an origin
+     *                         gets no more preflights by spreading them
+     *                         over the URLs of many items
+     */
+    static CORSPolicy compileItem(FilterConfig config, long generation, PackedOriginSet listedOrigins, PreflightRateLimiter preflightLimiter)
+    {
+        return compile(config, ITEM_PARAM_PREFIX, generation, listedOrigins, new PathTrie<CORSPolicy>(), null, OriginPolicyTable.EMPTY, preflightLimiter);
+    }
+
+    /**
+     * Checks the parameters {@link #compile(FilterConfig, long, PackedOriginSet)}
+     * reads, rejecting the values it would only log and replace by a
+     * default: numbers that do not parse or are negative, and allowed
+     * origins that are regular expressions it cannot compile.
+     *
+     * @throws InvalidParameterException naming the first parameter found
+     *         to be invalid
+     */
+    static void validate(FilterConfig config)
+    {
+        validatePolicy(config, "");
+        for (int i = 0; config.getInitParameter(PATH_POLICY_PARAM_PREFIX + i + "." + PATH_PARAM) != null; ++i)
+            validatePolicy(config, PATH_POLICY_PARAM_PREFIX + i + ".");
+        for (int i = 0; config.getInitParameter(ORIGIN_POLICY_PARAM_PREFIX + i + "." + ALLOWED_ORIGINS_PARAM) != null; ++i)
+            validatePolicy(config, ORIGIN_POLICY_PARAM_PREFIX + i + ".");
+        validatePolicy(config, SHADOW_PARAM_PREFIX);
+        validateInteger(config, ADAPTIVE_MAX_AGE_CAP_PARAM);
+        validateInteger(config, ORIGIN_CACHE_SIZE_PARAM);
+        validateInteger(config, PREFLIGHT_CACHE_SIZE_PARAM);
+        validateInteger(config, PREFLIGHT_BURST_PARAM);
+        validateNumber(config, PREFLIGHT_RATE_LIMIT_PARAM, Double.MAX_VALUE);
+        validateNumber(config, SHADOW_SAMPLE_RATE_PARAM, 100.0);
+    }
+
+    private static void validatePolicy(FilterConfig config, String prefix)
+    {
+        String allowedOriginsConfig = config.getInitParameter(prefix + ALLOWED_ORIGINS_PARAM);
+        if (allowedOriginsConfig != null)
+        {
+            for (String allowedOrigin : allowedOriginsConfig.split(","))
+            {
+                try
+                {
+                    OriginMatcher.validate(allowedOrigin.trim());
+                }
+                catch (IllegalArgumentException x)
+                {
+                    throw new InvalidParameterException(prefix + ALLOWED_ORIGINS_PARAM, "cannot use allowed origin " + allowedOrigin.trim() + ": " + x.getMessage());
+                }
+            }
+        }
+        validateInteger(config, prefix + PREFLIGHT_MAX_AGE_PARAM);
+    }
+
+    /** Checks that the parameter, if set, is a non-negative integer. */
+    private static void validateInteger(FilterConfig config, String param)
+    {
+        String value = config.getInitParameter(param);
+        if (isBlank(value))
+            return;
+        int number;
+        try
+        {
+            number = Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException x)
+        {
+            throw new InvalidParameterException(param, "'" + value.trim() + "' is not a whole number");
+        }
+        if (number < 0)
+            throw new InvalidParameterException(param, "must not be negative, but is " + number);
+    }
+
+    /** Checks that the parameter, if set, is a number from 0 to <code>max</code>. */
+    private static void validateNumber(FilterConfig config, String param, double max)
+    {
+        String value = config.getInitParameter(param);
+        if (isBlank(value))
+            return;
+        double number;
+        try
+        {
+            number = Double.parseDouble(value.trim());
+        }
+        catch (NumberFormatException x)
+        {
+            number = Double.NaN;
+        }
+        if (Double.isNaN(number))
+            throw new InvalidParameterException(param, "'" + value.trim() + "' is not a number");
+        if (number < 0)
+            throw new InvalidParameterException(param, "must not be negative, but is " + value.trim());
+        if (number > max)
+            throw new InvalidParameterException(param, "must not be above " + max + ", but is " + value.trim());
+    }
+
+    /** A filter parameter that {@link #validate} rejects. */
+    static final class InvalidParameterException extends IllegalArgumentException
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The name of the parameter, with the prefix of its policy. */
+        final String param;
+
+        InvalidParameterException(String param, String message)
+        {
+            super(param + ": " + message);
+            this.param = param;
+        }
+    }
+
+    /**
+     * Reads the parameter <code>prefix + name</code>, or the global
+     * parameter <code>name</code> if that one is not set or blank.
+     */
+    private static String param(FilterConfig config, String prefix, String name)
+    {
+        if (prefix.length() > 0)
+        {
+            String value = config.getInitParameter(prefix + name);
+            if (value != null && value.trim().length() > 0)
+                return value;
+        }
+        return config.getInitParameter(name);
+    }
+
+    private static CORSPolicy compile(FilterConfig config, String prefix, long generation, PackedOriginSet listedOrigins, PathTrie<CORSPolicy> routes, ShadowPolicy shadow,
+                                      OriginPolicyTable originPolicies, PreflightRateLimiter preflightLimiter)
+    {
+        if (prefix.length() > 0 && !isBlank(config.getInitParameter(prefix + ALLOWED_ORIGINS_PARAM)))
+            listedOrigins = PackedOriginSet.EMPTY;
+
+        boolean anyOriginAllowed = false;
+        List<String> allowedOrigins = new ArrayList<String>();
+        String allowedOriginsConfig = param(config, prefix, ALLOWED_ORIGINS_PARAM);
+        if (allowedOriginsConfig == null)
+            allowedOriginsConfig = DEFAULT_ALLOWED_ORIGINS;
+        for (String allowedOrigin : allowedOriginsConfig.split(","))
+        {
+            allowedOrigin = allowedOrigin.trim();
+            if (allowedOrigin.length() > 0)
+            {
+                if (ANY_ORIGIN.equals(allowedOrigin))
+                {
+                    anyOriginAllowed = true;
+                    allowedOrigins.clear();
+                    break;
+                }
+                else
+                {
+                    allowedOrigins.add(allowedOrigin);
+                }
+            }
+        }
+
+        String allowedMethodsConfig = param(config, prefix, ALLOWED_METHODS_PARAM);
+        if (allowedMethodsConfig == null)
+            allowedMethodsConfig = DEFAULT_ALLOWED_METHODS;
+        List<String> allowedMethods = canonicalList(allowedMethodsConfig, false);
+
+        String allowedHeadersConfig = param(config, prefix, ALLOWED_HEADERS_PARAM);
+        if (allowedHeadersConfig == null)
+            allowedHeadersConfig = DEFAULT_ALLOWED_HEADERS;
+        List<String> allowedHeaders = canonicalList(allowedHeadersConfig, true);
+
+        String preflightMaxAgeConfig = param(config, prefix, PREFLIGHT_MAX_AGE_PARAM);
+        if (preflightMaxAgeConfig == null)
+            preflightMaxAgeConfig = DEFAULT_PREFLIGHT_MAX_AGE; // Default is 30 minutes
+        int preflightMaxAge = parseInteger(PREFLIGHT_MAX_AGE_PARAM, preflightMaxAgeConfig, DEFAULT_PREFLIGHT_MAX_AGE);
+
+        String allowedCredentialsConfig = param(config, prefix, ALLOW_CREDENTIALS_PARAM);
+        if (allowedCredentialsConfig == null)
+            allowedCredentialsConfig = DEFAULT_ALLOW_CREDENTIALS;
+        boolean allowCredentials = Boolean.parseBoolean(allowedCredentialsConfig);
+
+        String exposedHeadersConfig = param(config, prefix, EXPOSED_HEADERS_PARAM);
+        if (exposedHeadersConfig == null)
+            exposedHeadersConfig = DEFAULT_EXPOSED_HEADERS;
+        List<String> exposedHeaders = canonicalList(exposedHeadersConfig, true);
+
+        String chainPreflightConfig = config.getInitParameter(OLD_CHAIN_PREFLIGHT_PARAM);
+        if (chainPreflightConfig!=null) // TODO remove this
+        {
+            if (prefix.length() == 0)
+                LOG.log(Level.WARNING,"DEPRECATED CONFIGURATION: Use "+CHAIN_PREFLIGHT_PARAM+ " instead of "+OLD_CHAIN_PREFLIGHT_PARAM);
+        }
+        else
+            chainPreflightConfig = config.getInitParameter(CHAIN_PREFLIGHT_PARAM);
+        if (chainPreflightConfig == null)
+            chainPreflightConfig = DEFAULT_CHAIN_PREFLIGHT;
+        boolean chainPreflight = Boolean.parseBoolean(chainPreflightConfig);
+
+        String rejectDisallowedConfig = config.getInitParameter(REJECT_DISALLOWED_PARAM);
+        if (rejectDisallowedConfig == null)
+            rejectDisallowedConfig = DEFAULT_REJECT_DISALLOWED;
+        boolean rejectDisallowed = Boolean.parseBoolean(rejectDisallowedConfig);
+
+        String proxyCacheableConfig = config.getInitParameter(PROXY_CACHEABLE_PARAM);
+        if (proxyCacheableConfig == null)
+            proxyCacheableConfig = DEFAULT_PROXY_CACHEABLE;
+        boolean proxyCacheable = Boolean.parseBoolean(proxyCacheableConfig);
+
+        String preflightCacheControlConfig = config.getInitParameter(PREFLIGHT_CACHE_CONTROL_PARAM);
+        if (preflightCacheControlConfig == null)
+            preflightCacheControlConfig = DEFAULT_PREFLIGHT_CACHE_CONTROL;
+        boolean preflightCacheControl = Boolean.parseBoolean(preflightCacheControlConfig);
+
+        String adaptiveMaxAgeCapConfig = config.getInitParameter(ADAPTIVE_MAX_AGE_CAP_PARAM);
+        if (adaptiveMaxAgeCapConfig == null)
+            adaptiveMaxAgeCapConfig = DEFAULT_ADAPTIVE_MAX_AGE_CAP;
+        int adaptiveMaxAgeCap = parseInteger(ADAPTIVE_MAX_AGE_CAP_PARAM, adaptiveMaxAgeCapConfig, DEFAULT_ADAPTIVE_MAX_AGE_CAP);
+
+        String originCacheSizeConfig = config.getInitParameter(ORIGIN_CACHE_SIZE_PARAM);
+        if (originCacheSizeConfig == null)
+            originCacheSizeConfig = DEFAULT_ORIGIN_CACHE_SIZE;
+        int originCacheSize = parseInteger(ORIGIN_CACHE_SIZE_PARAM, originCacheSizeConfig, DEFAULT_ORIGIN_CACHE_SIZE);
+
+        String preflightCacheSizeConfig = config.getInitParameter(PREFLIGHT_CACHE_SIZE_PARAM);
+        if (preflightCacheSizeConfig == null)
+            preflightCacheSizeConfig = DEFAULT_PREFLIGHT_CACHE_SIZE;
+        int preflightCacheSize = parseInteger(PREFLIGHT_CACHE_SIZE_PARAM, preflightCacheSizeConfig, DEFAULT_PREFLIGHT_CACHE_SIZE);
+        if (prefix.equals(ITEM_PARAM_PREFIX))
+        {
+            originCacheSize = Math.min(originCacheSize, ITEM_CACHE_SIZE);
+            preflightCacheSize = Math.min(preflightCacheSize, ITEM_CACHE_SIZE);
+        }
+
+        if (preflightLimiter == null)
+            preflightLimiter = compileLimiter(config);
+
+        LOG.log(Level.CONFIG,"Cross-origin filter configuration (generation " + generation + describe(config, prefix) + "): " +
+                ALLOWED_ORIGINS_PARAM + " = " + allowedOriginsConfig + ", " +
+                ALLOWED_METHODS_PARAM + " = " + allowedMethodsConfig + ", " +
+                ALLOWED_HEADERS_PARAM + " = " + allowedHeadersConfig + ", " +
+                PREFLIGHT_MAX_AGE_PARAM + " = " + preflightMaxAgeConfig + ", " +
+                ALLOW_CREDENTIALS_PARAM + " = " + allowedCredentialsConfig + "," +
+                EXPOSED_HEADERS_PARAM + " = " + exposedHeadersConfig + "," +
+                CHAIN_PREFLIGHT_PARAM + " = " + chainPreflightConfig + "," +
+                REJECT_DISALLOWED_PARAM + " = " + rejectDisallowedConfig + "," +
+                PROXY_CACHEABLE_PARAM + " = " + proxyCacheableConfig + "," +
+                PREFLIGHT_CACHE_CONTROL_PARAM + " = " + preflightCacheControlConfig + "," +
+                ADAPTIVE_MAX_AGE_CAP_PARAM + " = " + adaptiveMaxAgeCapConfig + "," +
+                ORIGIN_CACHE_SIZE_PARAM + " = " + originCacheSizeConfig + "," +
+                PREFLIGHT_CACHE_SIZE_PARAM + " = " + preflightCacheSizeConfig + "," +
+                PREFLIGHT_RATE_LIMIT_PARAM + " = " + config.getInitParameter(PREFLIGHT_RATE_LIMIT_PARAM) + "," +
+                PREFLIGHT_BURST_PARAM + " = " + config.getInitParameter(PREFLIGHT_BURST_PARAM) + "," +
+                ALLOWED_ORIGINS_FILE_PARAM + " = " + listedOrigins.size() + " origins" +
+                (shadow == null ? "" : ", " + SHADOW_SAMPLE_RATE_PARAM + " = " + config.getInitParameter(SHADOW_SAMPLE_RATE_PARAM)) +
+                (originPolicies.isEmpty() ? "" : ", " + originPolicies.size() + " origin policies")
+                );
+
+        String scope = prefix.length() == 0 ? "global"
+                     : prefix.equals(SHADOW_PARAM_PREFIX) ? "shadow"
+                     : prefix.startsWith(ORIGIN_POLICY_PARAM_PREFIX) ? allowedOriginsConfig.trim()
+                     : config.getInitParameter(prefix + PATH_PARAM).trim();
+        return new CORSPolicy(generation, scope, false, anyOriginAllowed, allowedOrigins, allowedMethods, allowedHeaders,
+                              exposedHeaders, preflightMaxAge, allowCredentials, chainPreflight, rejectDisallowed, proxyCacheable, preflightCacheControl, adaptiveMaxAgeCap, originCacheSize, preflightCacheSize,
+                              preflightLimiter, listedOrigins, routes, shadow, originPolicies);
+    }
+
+    /** @return which policy the parameters under <code>prefix</code> configure, for the log */
+    private static String describe(FilterConfig config, String prefix)
+    {
+        if (prefix.length() == 0)
+            return "";
+        if (prefix.equals(SHADOW_PARAM_PREFIX))
+            return ", shadow";
+        if (prefix.startsWith(ORIGIN_POLICY_PARAM_PREFIX))
+            return ", " + prefix + ALLOWED_ORIGINS_PARAM + " = " + config.getInitParameter(prefix + ALLOWED_ORIGINS_PARAM);
+        return ", " + prefix + PATH_PARAM + " = " + config.getInitParameter(prefix + PATH_PARAM);
+    }
+
+    /** Reads the preflight rate limit and burst, which apply to all policies alike. */
+    private static PreflightRateLimiter compileLimiter(FilterConfig config)
+    {
+        String preflightRateLimitConfig = config.getInitParameter(PREFLIGHT_RATE_LIMIT_PARAM);
+        if (preflightRateLimitConfig == null)
+            preflightRateLimitConfig = DEFAULT_PREFLIGHT_RATE_LIMIT;
+        double preflightRateLimit = 0;
+        try
+        {
+            preflightRateLimit = Double.parseDouble(preflightRateLimitConfig.trim());
+        }
+        catch (NumberFormatException x)
+        {
+            LOG.log(Level.INFO,"Cross-origin filter, could not parse '{0}' parameter as a number: {1}", new Object[]{PREFLIGHT_RATE_LIMIT_PARAM, preflightRateLimitConfig});
+        }
+
+        String preflightBurstConfig = config.getInitParameter(PREFLIGHT_BURST_PARAM);
+        if (preflightBurstConfig == null)
+            preflightBurstConfig = DEFAULT_PREFLIGHT_BURST;
+        int preflightBurst = parseInteger(PREFLIGHT_BURST_PARAM, preflightBurstConfig, DEFAULT_PREFLIGHT_BURST);
+
+        return new PreflightRateLimiter(preflightRateLimit, preflightBurst);
+    }
+
+    /**
+     * Parses an integer parameter the way {@link #validate} checks it,
+     * surrounding whitespace and all.
+     */
+    private static int parseInteger(String param, String value, String defaultValue)
+    {
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException x)
+        {
+            LOG.log(Level.INFO,"Cross-origin filter, could not parse '{0}' parameter as integer: {1}", new Object[]{param, value});
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    private static boolean isBlank(String value)
+    {
+        return value == null || value.trim().length() == 0;
+    }
+
+    /**
+     * Splits a comma separated list into its trimmed, non-empty entries,
+     * without duplicates and sorted, so that the header values built
+     * from it do not depend on how the list was typed in.
+     */
+    private static List<String> canonicalList(String value, boolean ignoreCase)
+    {
+        Set<String> entries = ignoreCase ? new TreeSet<String>(String.CASE_INSENSITIVE_ORDER) : new TreeSet<String>();
+        for (String entry : value.split(","))
+        {
+            entry = entry.trim();
+            if (entry.length() > 0)
+                entries.add(entry);
+        }
+        return new ArrayList<String>(entries);
+    }
+
+    private static String commify(List<String> strings)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < strings.size(); ++i)
+        {
+            if (i > 0) builder.append(",");
+            String string = strings.get(i);
+            builder.append(string);
+        }
+        return builder.toString();
+    }
+}
@@ -19,12 +19,15 @@
 package org.jenkinsci.plugins.cors;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -64,7 +67,17 @@ import java.util.logging.Level;
  * any subdomain of example.com; or https?://*.example.[a-z]{3}(:[0-9]+)?
  * which matches a scheme of http or https, all subdomains, any 3 letter
  * top-level domain, and any port number (.com, .net, .org, etc.).
+ * Origins are compared case-insensitively in their scheme and host, with
+ * a default port (80 for http and ws, 443 for https and wss) and a
+ * trailing "/" ignored, so http://Foo.com:80/ is the same origin as
+ * http://foo.com. Regular expressions are matched against both the
+ * origin as sent and that normalized form.
  * 
+ * <li><b>allowedOriginsFile</b>, the path of a file listing further
+ * allowed origins, one per line, for allowlists too long for
+ * <b>allowedOrigins</b>. Blank lines and lines starting with "#" are
+ * ignored, and the entries must be exact origins. The file is watched
+ * and reloaded when it changes. Default is <b>none</b></li>
  * <li><b>allowedMethods</b>, a comma separated list of HTTP methods that
  * are allowed to be used when accessing the resources. Default value is
  * <b>GET,POST,HEAD</b></li>
@@ -82,7 +95,86 @@ import java.util.logging.Level;
  * <li><b>chainPreflight</b>, if true preflight requests are chained to their
  * target resource for normal handling (as an OPTION request).  Otherwise the
  * filter will response to the preflight. Default is true.</li>
+ * <li><b>rejectDisallowed</b>, if true cross-origin requests whose origin
+ * is not allowed, and preflights whose method or headers are not allowed,
+ * are answered with an empty 403 response and never reach the rest of
+ * the filter chain. Otherwise they are passed on without CORS headers.
+ * Default is <b>false</b></li>
+ * <li><b>proxyCacheable</b>, if true every response the filter handles
+ * carries "Vary: Origin", and preflight responses also vary on the
+ * requested method and headers, so that a caching reverse proxy in front
+ * of the server can store them safely. Default is <b>false</b></li>
+ * <li><b>preflightCacheControl</b>, if true allowed preflight responses
+ * carry "Cache-Control: public, max-age=" <b>preflightMaxAge</b>, so that
+ * such a proxy answers repeat preflights itself. Default is
+ * <b>false</b></li>
+ * <li><b>adaptiveMaxAgeCap</b>, the highest max age, in seconds, granted
+ * to origins whose preflights have all been allowed for a while: such an
+ * origin is granted twice <b>preflightMaxAge</b> once that has passed, four
+ * times after twice that, and so on up to this cap. A rejected preflight
+ * or a reconfiguration starts over. How often origins re-preflight is
+ * tracked either way, see {@link #getPreflightOffenders()}. Default is
+ * <b>0</b>, meaning every origin gets <b>preflightMaxAge</b></li>
+ * <li><b>originCacheSize</b>, the maximum number of distinct Origin header
+ * values whose allow/deny verdict is cached. The cache is discarded whenever
+ * the filter is reconfigured, and 0 disables it. Default is <b>1024</b></li>
+ * <li><b>preflightCacheSize</b>, the maximum number of distinct preflight
+ * shapes (origin, requested method and requested headers) whose response
+ * headers are cached. The cache is discarded whenever the filter is
+ * reconfigured, and 0 disables it. Default is <b>1024</b></li>
+ * <li><b>preflightRateLimit</b>, the number of preflight requests per
+ * second allowed from each origin, with bursts of up to
+ * <b>preflightBurst</b> requests. Preflights over the limit are answered
+ * with a 429. Default is <b>0</b>, meaning no limit</li>
+ * <li><b>preflightBurst</b>, the number of preflight requests an origin
+ * may send in a row before <b>preflightRateLimit</b> applies. Default is
+ * <b>10</b></li>
+ * <li><b>bypassPaths</b>, a comma or whitespace separated list of path
+ * prefixes, relative to the context path, for which the filter does
+ * nothing at all. Default is the <b>empty list</b></li>
+ * <li><b>traceFile</b>, the path of a file to which the method, the
+ * CORS request headers, the path and the Connection and Upgrade headers
+ * of every request are appended, for replaying against other policies
+ * offline. Records are written by a background thread, and dropped
+ * rather than delaying requests when it falls behind. Default is
+ * <b>none</b>, meaning nothing is recorded</li>
+ * <li><b>shadowSampleRate</b>, the percentage of cross-origin requests,
+ * among those served by the global policy, that are also evaluated
+ * against a shadow policy given by <b>shadow.allowedOrigins</b>,
+ * <b>shadow.allowedMethods</b> and <b>shadow.allowedHeaders</b>, which
+ * fall back to the global parameters when unset. The shadow policy only
+ * observes: the requests on which it would decide differently are kept
+ * in a small buffer, see {@link #getShadowDisagreements()}. Default is
+ * <b>0</b>, meaning no shadow policy</li>
+ * <li><b>pathPolicy.<i>N</i>.path</b>, for N = 0, 1, ..., a path prefix
+ * bound to its own policy, whose <b>pathPolicy.<i>N</i>.allowedOrigins</b>,
+ * <b>.allowedMethods</b>, <b>.allowedHeaders</b>, <b>.exposedHeaders</b>,
+ * <b>.preflightMaxAge</b> and <b>.allowCredentials</b> fall back to the
+ * global parameters when unset. A "*" in a path prefix matches one path
+ * segment, and the most specific matching prefix wins.</li>
+ * <li><b>originPolicy.<i>N</i>.allowedOrigins</b>, for N = 0, 1, ..., a
+ * comma separated list of origins, in the syntax of
+ * <b>allowedOrigins</b>, bound to their own
+ * <b>originPolicy.<i>N</i>.allowedMethods</b>, <b>.allowedHeaders</b>,
+ * <b>.exposedHeaders</b>, <b>.preflightMaxAge</b> and
+ * <b>.allowCredentials</b>, which fall back to the global parameters when
+ * unset. Origin policies apply to requests served by the global policy:
+ * an origin listed by one is allowed with its settings instead of the
+ * global ones. An origin listed exactly wins over patterns, and otherwise
+ * the first matching origin policy wins.</li>
  * </ul></p>
+ * <p>Jenkins items may carry their own override of <b>allowedOrigins</b>,
+ * <b>allowedMethods</b>, <b>allowedHeaders</b>, <b>exposedHeaders</b>,
+ * <b>preflightMaxAge</b> and <b>allowCredentials</b>, set with
+ * {@link #setItemPolicy} by item listeners rather than through filter
+ * parameters. An override applies to the cross-origin requests under the
+ * URL of its item, in place of the global and path policies, and the
+ * override of the innermost item wins.</p>
+ * <p>The filter decides once per client request. When the request is
+ * forwarded, included or dispatched to an error page and comes through
+ * the filter again, that decision stands and is not counted again; an
+ * error dispatch has the CORS headers of an allowed request set again,
+ * in case the error reset the response.</p>
  * <p>A typical configuration could be:
  * <pre>
  * &lt;web-app ...&gt;
@@ -115,8 +207,12 @@ public class CrossOriginFilter implements Filter
     public static final String ACCESS_CONTROL_MAX_AGE_HEADER = "Access-Control-Max-Age";
     public static final String ACCESS_CONTROL_ALLOW_CREDENTIALS_HEADER = "Access-Control-Allow-Credentials";
     public static final String ACCESS_CONTROL_EXPOSE_HEADERS_HEADER = "Access-Control-Expose-Headers";
+    public static final String VARY_HEADER = "Vary";
+    public static final String CACHE_CONTROL_HEADER = "Cache-Control";
+    private static final String PREFLIGHT_VARY = ACCESS_CONTROL_REQUEST_METHOD_HEADER + ", " + ACCESS_CONTROL_REQUEST_HEADERS_HEADER;
     // Implementation constants
     public static final String ALLOWED_ORIGINS_PARAM = "allowedOrigins";
+    public static final String ALLOWED_ORIGINS_FILE_PARAM = "allowedOriginsFile";
     public static final String ALLOWED_METHODS_PARAM = "allowedMethods";
     public static final String ALLOWED_HEADERS_PARAM = "allowedHeaders";
     public static final String PREFLIGHT_MAX_AGE_PARAM = "preflightMaxAge";
@@ -124,7 +220,23 @@ public class CrossOriginFilter implements Filter
     public static final String EXPOSED_HEADERS_PARAM = "exposedHeaders";
     public static final String OLD_CHAIN_PREFLIGHT_PARAM = "forwardPreflight";
     public static final String CHAIN_PREFLIGHT_PARAM = "chainPreflight";
-    private static final String ANY_ORIGIN = "*";
+    public static final String REJECT_DISALLOWED_PARAM = "rejectDisallowed";
+    public static final String PROXY_CACHEABLE_PARAM = "proxyCacheable";
+    public static final String PREFLIGHT_CACHE_CONTROL_PARAM = "preflightCacheControl";
+    public static final String ADAPTIVE_MAX_AGE_CAP_PARAM = "adaptiveMaxAgeCap";
+    public static final String ORIGIN_CACHE_SIZE_PARAM = "originCacheSize";
+    public static final String PREFLIGHT_CACHE_SIZE_PARAM = "preflightCacheSize";
+    public static final String PREFLIGHT_RATE_LIMIT_PARAM = "preflightRateLimit";
+    public static final String PREFLIGHT_BURST_PARAM = "preflightBurst";
+    public static final String BYPASS_PATHS_PARAM = "bypassPaths";
+    public static final String TRACE_FILE_PARAM = "traceFile";
+    public static final String PATH_POLICY_PARAM_PREFIX = "pathPolicy.";
+    public static final String PATH_PARAM = "path";
+    public static final String ORIGIN_POLICY_PARAM_PREFIX = "originPolicy.";
+    public static final String SHADOW_PARAM_PREFIX = "shadow.";
+    public static final String SHADOW_SAMPLE_RATE_PARAM = "shadowSampleRate";
+    public static final String ITEM_PARAM_PREFIX = "item.";
+    static final String ANY_ORIGIN = "*";
     private static final List<String> SIMPLE_HTTP_METHODS = Arrays.asList("GET", "POST", "HEAD");
 
     public static final String DEFAULT_ALLOWED_ORIGINS = "*";
@@ -135,104 +247,324 @@ public class CrossOriginFilter implements Filter
     public static final String DEFAULT_EXPOSED_HEADERS = "";
     public static final String DEFAULT_OLD_CHAIN_PREFLIGHT = "forwardPreflight";
     public static final String DEFAULT_CHAIN_PREFLIGHT = "true";
+    public static final String DEFAULT_REJECT_DISALLOWED = "false";
+    public static final String DEFAULT_PROXY_CACHEABLE = "false";
+    public static final String DEFAULT_PREFLIGHT_CACHE_CONTROL = "false";
+    public static final String DEFAULT_ADAPTIVE_MAX_AGE_CAP = "0";
+    public static final String DEFAULT_ORIGIN_CACHE_SIZE = "1024";
+    public static final String DEFAULT_PREFLIGHT_CACHE_SIZE = "1024";
+    public static final String DEFAULT_PREFLIGHT_RATE_LIMIT = "0";
+    public static final String DEFAULT_PREFLIGHT_BURST = "10";
+    public static final String DEFAULT_SHADOW_SAMPLE_RATE = "0";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
 
-    private boolean anyOriginAllowed;
-    private List<String> allowedOrigins = new ArrayList<String>();
-    private List<String> allowedMethods = new ArrayList<String>();
-    private List<String> allowedHeaders = new ArrayList<String>();
-    private List<String> exposedHeaders = new ArrayList<String>();
-    private int preflightMaxAge;
-    private boolean allowCredentials;
-    private boolean chainPreflight;
+    /** Name of the request attribute holding the generation of the policy that served the request. */
+    public static final String POLICY_GENERATION_ATTRIBUTE = CrossOriginFilter.class.getName() + ".policyGeneration";
+    /**
+     * Names of the request attributes holding the decision on a client
+     * request, which marks it as handled for the forward, include and
+     * error dispatches that follow, and the policy that made it, if
+     * {@link #redispatch} needs it.
+     */
+    private static final String DECISION_ATTRIBUTE = CrossOriginFilter.class.getName() + ".decision";
+    private static final String DECIDING_POLICY_ATTRIBUTE = CrossOriginFilter.class.getName() + ".decidingPolicy";
+    /** Set by the container on an error dispatch, as of Servlet 2.4. */
+    private static final String ERROR_STATUS_CODE_ATTRIBUTE = "javax.servlet.error.status_code";
+    /** Set by the container on a forward and an include, as of Servlet 2.4. */
+    private static final String FORWARD_REQUEST_URI_ATTRIBUTE = "javax.servlet.forward.request_uri";
+    private static final String INCLUDE_REQUEST_URI_ATTRIBUTE = "javax.servlet.include.request_uri";
 
-    private void reset() 
+    private final AtomicLong generations = new AtomicLong();
+    private volatile CORSPolicy policy = CORSPolicy.EMPTY;
+    private final CORSMetrics metrics = new CORSMetrics();
+    private final PreflightAnalytics preflightAnalytics = new PreflightAnalytics();
+    /** The recorder of {@link #TRACE_FILE_PARAM}, or null if requests are not being recorded. */
+    private volatile TraceRecorder recorder;
+    /** The overrides of Jenkins items, which outlive reconfigurations. */
+    private final ItemPolicyCache items = new ItemPolicyCache();
+    /** Guards {@link #config}, {@link #originList}, {@link #recorder} and {@link #items}, and orders the policies they compile to. */
+    private final Object configLock = new Object();
+    private FilterConfig config;
+    private OriginListFile originList;
+    private final OriginListFile.Listener originListListener = new OriginListFile.Listener()
     {
-        anyOriginAllowed = false;
-        allowedOrigins.clear();
-        allowedMethods.clear();
-        allowedHeaders.clear();
-        exposedHeaders.clear();
-        preflightMaxAge = 0;
-        allowCredentials = false;
-        chainPreflight = false;
-    }
+        public void originsChanged(OriginListFile source)
+        {
+            synchronized (configLock)
+            {
+                // a reconfiguration may have replaced the file meanwhile
+                if (source == originList)
+                    publishPolicy();
+            }
+        }
+    };
 
+    /**
+     * Configures the filter, unless it has been configured already: the
+     * plugin configures its filter through {@link #reconfigure} before
+     * adding it to the Jenkins filter chain, which may initialize the
+     * filter again with a config of its own.
+     */
     public void init(FilterConfig config) throws ServletException
     {
         LOG.fine("init() called with argument config=" + config.toString());
-        reset(); // in case init is called twice
-        String allowedOriginsConfig = config.getInitParameter(ALLOWED_ORIGINS_PARAM);
-        if (allowedOriginsConfig == null)
-            allowedOriginsConfig = DEFAULT_ALLOWED_ORIGINS;
-        String[] allowedOrigins = allowedOriginsConfig.split(",");
-        for (String allowedOrigin : allowedOrigins)
-        {
-            allowedOrigin = allowedOrigin.trim();
-            if (allowedOrigin.length() > 0)
+        synchronized (configLock)
+        {
+            if (this.config != null)
             {
-                if (ANY_ORIGIN.equals(allowedOrigin))
-                {
-                    anyOriginAllowed = true;
-                    this.allowedOrigins.clear();
-                    break;
-                }
-                else
-                {
-                    this.allowedOrigins.add(allowedOrigin);
-                }
+                LOG.fine("init() ignored, the filter is configured already");
+                return;
             }
+            reconfigure(config);
         }
+    }
 
-        String allowedMethodsConfig = config.getInitParameter(ALLOWED_METHODS_PARAM);
-        if (allowedMethodsConfig == null)
-            allowedMethodsConfig = DEFAULT_ALLOWED_METHODS;
-        allowedMethods.addAll(Arrays.asList(allowedMethodsConfig.split(",")));
-
-        String allowedHeadersConfig = config.getInitParameter(ALLOWED_HEADERS_PARAM);
-        if (allowedHeadersConfig == null)
-            allowedHeadersConfig = DEFAULT_ALLOWED_HEADERS;
-        allowedHeaders.addAll(Arrays.asList(allowedHeadersConfig.split(",")));
+    /**
+     * Compiles <code>config</code> into the policy of the filter and
+     * publishes it, replacing any previous configuration; requests never
+     * see a partially applied one. Invalid values are logged and replaced
+     * by their defaults, so that a saved configuration still yields a
+     * working filter.
+     */
+    public void reconfigure(FilterConfig config)
+    {
+        synchronized (configLock)
+        {
+            this.config = config;
+            String originListPath = config.getInitParameter(ALLOWED_ORIGINS_FILE_PARAM);
+            if (originListPath != null)
+                originListPath = originListPath.trim();
+            if (originListPath == null || originListPath.length() == 0)
+            {
+                closeOriginList();
+            }
+            else if (originList == null || !originList.getPath().equals(OriginListFile.normalize(originListPath)))
+            {
+                closeOriginList();
+                originList = OriginListFile.open(originListPath, originListListener);
+            }
+            openRecorder(config.getInitParameter(TRACE_FILE_PARAM));
+            publishPolicy();
+        }
+    }
 
-        String preflightMaxAgeConfig = config.getInitParameter(PREFLIGHT_MAX_AGE_PARAM);
-        if (preflightMaxAgeConfig == null)
-            preflightMaxAgeConfig = DEFAULT_PREFLIGHT_MAX_AGE; // Default is 30 minutes
+    /** Must hold {@link #configLock}. */
+    private void openRecorder(String tracePath)
+    {
+        if (tracePath != null)
+            tracePath = tracePath.trim();
+        if (recorder != null && recorder.getPath().equals(tracePath))
+            return;
+        if (recorder != null)
+        {
+            recorder.close();
+            recorder = null;
+        }
+        if (tracePath == null || tracePath.length() == 0)
+            return;
         try
         {
-            preflightMaxAge = Integer.parseInt(preflightMaxAgeConfig);
+            recorder = TraceRecorder.open(tracePath);
         }
-        catch (NumberFormatException x)
+        catch (IOException x)
         {
-            LOG.log(Level.INFO,"Cross-origin filter, could not parse '{0}' parameter as integer: {1}", new Object[]{PREFLIGHT_MAX_AGE_PARAM, preflightMaxAgeConfig});
+            LOG.log(Level.WARNING,"Cross-origin filter, cannot record requests to " + tracePath, x);
         }
+    }
 
-        String allowedCredentialsConfig = config.getInitParameter(ALLOW_CREDENTIALS_PARAM);
-        if (allowedCredentialsConfig == null)
-            allowedCredentialsConfig = DEFAULT_ALLOW_CREDENTIALS;
-        allowCredentials = Boolean.parseBoolean(allowedCredentialsConfig);
+    /** Must hold {@link #configLock}. */
+    private void publishPolicy()
+    {
+        // compile the complete policy before publishing it, so that
+        // requests never see a partially initialized configuration
+        PackedOriginSet listedOrigins = originList == null ? PackedOriginSet.EMPTY : originList.origins();
+        CORSPolicy policy = CORSPolicy.compile(config, generations.incrementAndGet(), listedOrigins);
+        items.invalidate();
+        items.rebuild(config, policy.generation, listedOrigins, policy.preflightLimiter);
+        this.policy = policy;
+    }
 
-        String exposedHeadersConfig = config.getInitParameter(EXPOSED_HEADERS_PARAM);
-        if (exposedHeadersConfig == null)
-            exposedHeadersConfig = DEFAULT_EXPOSED_HEADERS;
-        exposedHeaders.addAll(Arrays.asList(exposedHeadersConfig.split(",")));
+    /** Must hold {@link #configLock}. */
+    private void publishItemPolicies()
+    {
+        // before the first configuration, the overrides are only kept;
+        // the changed ones get a generation of their own, so that
+        // requests and preflight analytics see that their policy changed
+        if (config != null)
+            items.rebuild(config, generations.incrementAndGet(), originList == null ? PackedOriginSet.EMPTY : originList.origins(), policy.preflightLimiter);
+    }
 
-        String chainPreflightConfig = config.getInitParameter(OLD_CHAIN_PREFLIGHT_PARAM);
-        if (chainPreflightConfig!=null) // TODO remove this
-            LOG.log(Level.WARNING,"DEPRECATED CONFIGURATION: Use "+CHAIN_PREFLIGHT_PARAM+ " instead of "+OLD_CHAIN_PREFLIGHT_PARAM);
-        else
-            chainPreflightConfig = config.getInitParameter(CHAIN_PREFLIGHT_PARAM);
-        if (chainPreflightConfig == null)
-            chainPreflightConfig = DEFAULT_CHAIN_PREFLIGHT;
-        chainPreflight = Boolean.parseBoolean(chainPreflightConfig);
-
-        LOG.log(Level.CONFIG,"Cross-origin filter configuration: " +
-                ALLOWED_ORIGINS_PARAM + " = " + allowedOriginsConfig + ", " +
-                ALLOWED_METHODS_PARAM + " = " + allowedMethodsConfig + ", " +
-                ALLOWED_HEADERS_PARAM + " = " + allowedHeadersConfig + ", " +
-                PREFLIGHT_MAX_AGE_PARAM + " = " + preflightMaxAgeConfig + ", " +
-                ALLOW_CREDENTIALS_PARAM + " = " + allowedCredentialsConfig + "," +
-                EXPOSED_HEADERS_PARAM + " = " + exposedHeadersConfig + "," +
-                CHAIN_PREFLIGHT_PARAM + " = " + chainPreflightConfig
-                );
+    /**
+     * Sets the CORS override of a Jenkins item, which applies instead of
+     * the global and path policies to the requests under its URL, or
+     * removes it. Overrides of items below it are kept.
+     *
+     * @param urlPrefix the URL of the item relative to the context path,
+     *                  such as <code>/job/foo/</code>
+     * @param params    the parameters of the override, named like the
+     *                  global parameters and falling back to them when
+     *                  blank, or null to remove the override
+     */
+    public void setItemPolicy(String urlPrefix, Map<String,String> params)
+    {
+        synchronized (configLock)
+        {
+            items.put(urlPrefix, params);
+            publishItemPolicies();
+        }
+    }
+
+    /**
+     * Replaces the CORS overrides of all items, as with
+     * {@link #setItemPolicy} for each entry of <code>params</code>.
+     */
+    public void setItemPolicies(Map<String,Map<String,String>> params)
+    {
+        synchronized (configLock)
+        {
+            items.putAll(params);
+            publishItemPolicies();
+        }
+    }
+
+    /**
+     * Removes the CORS overrides of the item at <code>urlPrefix</code> and
+     * of all items below it, as when that item is renamed, moved or
+     * deleted.
+     */
+    public void removeItemPolicies(String urlPrefix)
+    {
+        synchronized (configLock)
+        {
+            items.removeAll(urlPrefix);
+            publishItemPolicies();
+        }
+    }
+
+    /** @return the number of Jenkins items with a CORS override */
+    public int getItemPolicyCount()
+    {
+        return items.size();
+    }
+
+    /** Must hold {@link #configLock}. */
+    private void closeOriginList()
+    {
+        if (originList != null)
+        {
+            originList.close();
+            originList = null;
+        }
+    }
+
+    /**
+     * @return the generation of the global policy currently in effect,
+     *         which is 0 before the first call to {@link #init(FilterConfig)}
+     *         and increases with every later configuration
+     */
+    public long getPolicyGeneration()
+    {
+        return policy.generation;
+    }
+
+    /** @return the number of Origin header values currently in the origin cache */
+    public int getOriginCacheSize()
+    {
+        return policy.originCache.size();
+    }
+
+    /** @return the origin cache hits since the filter was last configured */
+    public long getOriginCacheHits()
+    {
+        return policy.originCache.getHitCount();
+    }
+
+    /** @return the origin cache misses since the filter was last configured */
+    public long getOriginCacheMisses()
+    {
+        return policy.originCache.getMissCount();
+    }
+
+    /** @return the number of preflight shapes currently in the preflight cache */
+    public int getPreflightCacheSize()
+    {
+        return policy.preflightCache.size();
+    }
+
+    /** @return the preflight cache hits since the filter was last configured */
+    public long getPreflightCacheHits()
+    {
+        return policy.preflightCache.getHitCount();
+    }
+
+    /** @return the preflight cache misses since the filter was last configured */
+    public long getPreflightCacheMisses()
+    {
+        return policy.preflightCache.getMissCount();
+    }
+
+    /**
+     * @return the origins that preflight the same request shapes again
+     *         most often since the filter was created, worst first
+     */
+    public List<PreflightOffender> getPreflightOffenders()
+    {
+        return preflightAnalytics.getOffenders();
+    }
+
+    /** @return whether a shadow policy is being evaluated */
+    public boolean isShadowEnabled()
+    {
+        return policy.shadow != null;
+    }
+
+    /** @return the requests evaluated against the shadow policy since the filter was last configured */
+    public long getShadowSampledCount()
+    {
+        ShadowPolicy shadow = policy.shadow;
+        return shadow == null ? 0L : shadow.getSampledCount();
+    }
+
+    /** @return the disagreements with the shadow policy since the filter was last configured */
+    public long getShadowDisagreementCount()
+    {
+        ShadowPolicy shadow = policy.shadow;
+        return shadow == null ? 0L : shadow.getDisagreementCount();
+    }
+
+    /** @return the latest disagreements with the shadow policy, most recent first */
+    public List<ShadowDisagreement> getShadowDisagreements()
+    {
+        ShadowPolicy shadow = policy.shadow;
+        return shadow == null ? Collections.<ShadowDisagreement>emptyList() : shadow.getDisagreements();
+    }
+
+    /**
+     * @return for each request class, the median, 99th and 99.9th
+     *         percentile of the time the filter spent on its requests
+     *         since it was created, excluding the rest of the filter chain
+     */
+    public Map<String,String> getLatencySummary()
+    {
+        Map<String,String> summary = new LinkedHashMap<String,String>();
+        for (int c = 0; c < CORSMetrics.REQUEST_CLASSES.length; ++c)
+        {
+            LatencyHistogram latency = metrics.latency(c);
+            summary.put(CORSMetrics.REQUEST_CLASSES[c],
+                        String.format("p50 %.1f \u00b5s, p99 %.1f \u00b5s, p99.9 %.1f \u00b5s (%d requests)",
+                                      latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3,
+                                      latency.percentile(0.999) / 1e3, latency.count()));
+        }
+        return summary;
+    }
+
+    /**
+     * Writes the decision counters and cache statistics of this filter in
+     * the Prometheus text exposition format.
+     */
+    public void writeMetrics(PrintWriter out)
+    {
+        metrics.writeTo(out, policy);
     }
 
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
@@ -240,49 +572,393 @@ public class CrossOriginFilter implements Filter
         handle((HttpServletRequest)request, (HttpServletResponse)response, chain);
     }
 
+    /*
+     * This runs for every request Jenkins serves, so apart from what the
+     * container does behind the request and response objects, requests
+     * without an Origin header and allowed simple requests must not
+     * allocate: log calls whose arguments cost anything are guarded by a
+     * level check made once per request. The time from here to the
+     * decision, which leaves out the rest of the filter chain, is
+     * recorded in the latency histograms.
+     */
     private void handle(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws IOException, ServletException
     {
-        LOG.log(Level.FINER,"got request with method={0}, origin={1}, " + ACCESS_CONTROL_REQUEST_METHOD_HEADER + "={2}", 
-                new Object[] {request.getMethod(), request.getHeader(ORIGIN_HEADER),request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER)});
+        final long start = System.nanoTime();
+        final boolean fine = LOG.isLoggable(Level.FINE);
+        final boolean finest = fine && LOG.isLoggable(Level.FINEST);
+        // Stapler forwards and includes, and errors are dispatched again:
+        // a request decided before goes on with that decision, rather
+        // than one made against whatever path it was dispatched to
+        final CORSDecision decided = (CORSDecision)request.getAttribute(DECISION_ATTRIBUTE);
+        if (decided != null)
+        {
+            redispatch(request, response, decided, fine);
+            chain.doFilter(request, response);
+            return;
+        }
+        if (fine && LOG.isLoggable(Level.FINER))
+            LOG.log(Level.FINER,"got request with method={0}, origin={1}, " + ACCESS_CONTROL_REQUEST_METHOD_HEADER + "={2}",
+                    new Object[] {request.getMethod(), request.getHeader(ORIGIN_HEADER),request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER)});
+        final TraceRecorder recorder = this.recorder;
+        if (recorder != null)
+            recorder.record(request);
+        // read the policy once, so the whole request is served by the same one
+        CORSPolicy policy = this.policy.forPath(request.getRequestURI(), request.getContextPath().length());
+        if (policy.bypass)
+        {
+            record(request, policy, CORSDecision.PATH_BYPASS, null, start, finest);
+            chain.doFilter(request, response);
+            return;
+        }
+        // whether or not this request is cross-origin, what the filter
+        // adds to the response depends on its Origin
+        if (policy.proxyCacheable)
+            response.addHeader(VARY_HEADER, ORIGIN_HEADER);
         String origin = request.getHeader(ORIGIN_HEADER);
         // Is it a cross origin request ?
-        if (origin != null && isEnabled(request))
+        if (origin == null)
+        {
+            // the decision follows from the header alone, so it is not
+            // kept on the request, which would cost the container an
+            // attribute on nearly every request; another dispatch decides
+            // it again, but does not count it twice
+            if (!isRedispatch(request))
+                count(policy, CORSDecision.NO_ORIGIN, null, start, finest);
+        }
+        else if (!isEnabled(request))
+        {
+            record(request, policy, CORSDecision.WEBSOCKET_BYPASS, origin, start, finest);
+        }
+        else
         {
-            if (originMatches(origin))
+            // the override of the item addressed, if any, replaces the
+            // global and path policies; only the bypass list comes first
+            CORSPolicy itemPolicy = items.lookup(request.getRequestURI(), request.getContextPath().length());
+            if (itemPolicy != null)
+                policy = itemPolicy;
+            request.setAttribute(POLICY_GENERATION_ATTRIBUTE, policy.generationValue);
+            final ShadowPolicy shadow = policy.shadow;
+            policy = policy.forOrigin(origin);
+            if (shadow != null && shadow.sample())
+                shadow.compare(origin, request.getRequestURI(), decide(policy, request, origin), decide(shadow.policy, request, origin));
+            if (originMatches(policy, origin))
             {
                 if (isSimpleRequest(request))
                 {
-                    LOG.log(Level.FINE,"Cross-origin request to {0} is a simple cross-origin request", request.getRequestURI());
-                    handleSimpleResponse(request, response, origin);
+                    if (fine)
+                        LOG.log(Level.FINE,"Cross-origin request to {0} is a simple cross-origin request", request.getRequestURI());
+                    handleSimpleResponse(policy, request, response, origin);
+                    record(request, policy, CORSDecision.SIMPLE_ALLOWED, origin, start, finest);
                 }
                 else if (isPreflightRequest(request))
                 {
-                    LOG.log(Level.FINE,"Cross-origin request to {0} is a preflight cross-origin request", request.getRequestURI());
-                    handlePreflightResponse(request, response, origin);
-                    if (chainPreflight)
-                        LOG.log(Level.FINE,"Preflight cross-origin request to {0} forwarded to application", request.getRequestURI());
-                    else
+                    if (fine)
+                        LOG.log(Level.FINE,"Cross-origin request to {0} is a preflight cross-origin request", request.getRequestURI());
+                    if (policy.proxyCacheable)
+                        response.addHeader(VARY_HEADER, PREFLIGHT_VARY);
+                    long wait = policy.preflightLimiter.acquire(origin);
+                    if (wait > 0)
+                    {
+                        if (fine)
+                            LOG.log(Level.FINE,"Preflight cross-origin request to {0} from {1} is over the rate limit", new Object[]{request.getRequestURI(), origin});
+                        rateLimit(response, wait);
+                        record(request, policy, CORSDecision.PREFLIGHT_RATE_LIMITED, origin, start, finest);
                         return;
+                    }
+                    CORSDecision decision = handlePreflightResponse(policy, request, response, origin);
+                    record(request, policy, decision, origin, start, finest);
+                    if (decision.isRejected() && policy.rejectDisallowed)
+                    {
+                        reject(response, decision);
+                        return;
+                    }
+                    if (!policy.chainPreflight)
+                        return;
+                    if (fine)
+                        LOG.log(Level.FINE,"Preflight cross-origin request to {0} forwarded to application", request.getRequestURI());
                 }
                 else
                 {
-                    LOG.log(Level.FINE,"Cross-origin request to {0} is a non-simple cross-origin request", request.getRequestURI());
-                    handleSimpleResponse(request, response, origin);
+                    if (fine)
+                        LOG.log(Level.FINE,"Cross-origin request to {0} is a non-simple cross-origin request", request.getRequestURI());
+                    handleSimpleResponse(policy, request, response, origin);
+                    record(request, policy, CORSDecision.NON_SIMPLE_ALLOWED, origin, start, finest);
                 }
             }
             else
             {
-                LOG.log(Level.FINE,"Cross-origin request to " + request.getRequestURI() + " with origin " + origin + " does not match allowed origins " + allowedOrigins);
+                if (fine)
+                    LOG.log(Level.FINE,"Cross-origin request to " + request.getRequestURI() + " with origin " + origin + " does not match allowed origins " + policy.allowedOrigins);
+                record(request, policy, CORSDecision.ORIGIN_REJECTED, origin, start, finest);
+                if (policy.rejectDisallowed)
+                {
+                    reject(response, CORSDecision.ORIGIN_REJECTED);
+                    return;
+                }
             }
         }
 
         chain.doFilter(request, response);
     }
 
+    /**
+     * Counts the decision on a request and the time the filter spent on
+     * it so far, and at level FINEST logs it as an event, with the policy
+     * that decided it. The decision is kept on the request, for
+     * {@link #redispatch}.
+     */
+    private void record(HttpServletRequest request, CORSPolicy policy, CORSDecision decision, String origin, long start, boolean finest)
+    {
+        request.setAttribute(DECISION_ATTRIBUTE, decision);
+        // only the headers of these are set again after an error
+        if (decision.isAllowed() || policy.proxyCacheable)
+            request.setAttribute(DECIDING_POLICY_ATTRIBUTE, policy);
+        count(policy, decision, origin, start, finest);
+    }
+
+    /** Does what {@link #record} does, except keeping the decision on the request. */
+    private void count(CORSPolicy policy, CORSDecision decision, String origin, long start, boolean finest)
+    {
+        long nanos = System.nanoTime() - start;
+        metrics.record(decision, origin);
+        metrics.recordLatency(decision, nanos);
+        if (finest)
+            LOG.log(Level.FINEST,"CORS request decision={0}, origin={1}, policy={2}, generation={3}, nanos={4}",
+                    new Object[]{decision.label, origin, policy.scope, policy.generation, nanos});
+    }
+
+    /** @return whether the container is dispatching <code>request</code> again, to a forward, include or error page */
+    private static boolean isRedispatch(HttpServletRequest request)
+    {
+        return request.getAttribute(ERROR_STATUS_CODE_ATTRIBUTE) != null
+            || request.getAttribute(FORWARD_REQUEST_URI_ATTRIBUTE) != null
+            || request.getAttribute(INCLUDE_REQUEST_URI_ATTRIBUTE) != null;
+    }
+
+    /**
+     * Handles another dispatch of a request decided already, without
+     * deciding or counting it again. After a forward or an include the
+     * response still carries the headers the decision set; an error
+     * dispatch may follow a reset of the response, so they are set again,
+     * so that the 401, 403 or 500 a browser gets can be read by the page
+     * that was allowed to make the request.
+     */
+    private void redispatch(HttpServletRequest request, HttpServletResponse response, CORSDecision decision, boolean fine)
+    {
+        if (request.getAttribute(ERROR_STATUS_CODE_ATTRIBUTE) == null)
+            return;
+        final CORSPolicy policy = (CORSPolicy)request.getAttribute(DECIDING_POLICY_ATTRIBUTE);
+        if (policy == null || policy.bypass)
+            return;
+        if (fine)
+            LOG.log(Level.FINE,"Error dispatch of {0}, setting the CORS headers of decision {1} again", new Object[]{request.getRequestURI(), decision.label});
+        if (policy.proxyCacheable && !response.containsHeader(VARY_HEADER))
+        {
+            response.addHeader(VARY_HEADER, ORIGIN_HEADER);
+            if (decision.isPreflight())
+                response.addHeader(VARY_HEADER, PREFLIGHT_VARY);
+        }
+        final String origin = request.getHeader(ORIGIN_HEADER);
+        if (origin == null || !decision.isAllowed())
+            return;
+        if (decision == CORSDecision.PREFLIGHT_ALLOWED)
+        {
+            PreflightResponse.Key key = new PreflightResponse.Key(origin,
+                                                                  request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER),
+                                                                  request.getHeader(ACCESS_CONTROL_REQUEST_HEADERS_HEADER));
+            PreflightResponse preflightResponse = policy.preflightCache.get(key);
+            if (preflightResponse == null)
+                preflightResponse = computePreflightResponse(policy, request, origin);
+            preflightResponse.apply(response);
+        }
+        else
+        {
+            handleSimpleResponse(policy, request, response, origin);
+        }
+    }
+
+    /**
+     * Answers a rejected request with an empty 403, so that Jenkins does
+     * not authenticate, dispatch and render a response the browser would
+     * discard anyway.
+     */
+    private void reject(HttpServletResponse response, CORSDecision decision)
+    {
+        response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        response.setContentLength(0);
+        metrics.recordEarlyReject(decision);
+    }
+
+    /**
+     * Answers a preflight over its origin's rate limit with an empty 429,
+     * telling the client when it may try again.
+     */
+    private void rateLimit(HttpServletResponse response, long waitNanos)
+    {
+        response.setStatus(SC_TOO_MANY_REQUESTS);
+        response.setHeader("Retry-After", String.valueOf(Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1))));
+        response.setContentLength(0);
+    }
+
+    /**
+     * @return what <code>policy</code> decides for a cross-origin request,
+     *         without touching the response; rate limits are not taken
+     *         into account
+     */
+    private CORSDecision decide(CORSPolicy policy, HttpServletRequest request, String origin)
+    {
+        return decide(policy, origin, request.getMethod(), request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER),
+                      request.getHeader(ACCESS_CONTROL_REQUEST_HEADERS_HEADER));
+    }
+
+    private CORSDecision decide(CORSPolicy policy, String origin, String method, String accessControlRequestMethod, String accessControlRequestHeaders)
+    {
+        if (!originMatches(policy, origin))
+            return CORSDecision.ORIGIN_REJECTED;
+        if (isSimpleRequest(method, accessControlRequestMethod))
+            return CORSDecision.SIMPLE_ALLOWED;
+        if (!isPreflightRequest(method, accessControlRequestMethod))
+            return CORSDecision.NON_SIMPLE_ALLOWED;
+        if (!isMethodAllowed(policy, accessControlRequestMethod))
+            return CORSDecision.PREFLIGHT_REJECTED_METHOD;
+        if (!areHeadersAllowed(policy, accessControlRequestHeaders))
+            return CORSDecision.PREFLIGHT_REJECTED_HEADERS;
+        return CORSDecision.PREFLIGHT_ALLOWED;
+    }
+
+    /**
+     * Runs a request shape through the policy in effect, as
+     * {@link #doFilter} would, and traces each stage of the decision with
+     * the time it took. Nothing is cached, counted or rate limited, so an
+     * explanation leaves no trace in the filter.
+     *
+     * @param origin                      the Origin header, or null
+     * @param method                      the request method
+     * @param path                        the request path, relative to the context path
+     * @param accessControlRequestMethod  the Access-Control-Request-Method header, or null
+     * @param accessControlRequestHeaders the Access-Control-Request-Headers header, or null
+     * @return the trace, as text
+     */
+    public String explain(String origin, String method, String path, String accessControlRequestMethod, String accessControlRequestHeaders)
+    {
+        PolicyExplanation explanation = new PolicyExplanation();
+        CORSPolicy policy = this.policy;
+        explanation.note("policy generation " + policy.generation);
+        explanation.note("request: " + method + " " + path + ", " + ORIGIN_HEADER + "=" + origin + ", " +
+                         ACCESS_CONTROL_REQUEST_METHOD_HEADER + "=" + accessControlRequestMethod + ", " +
+                         ACCESS_CONTROL_REQUEST_HEADERS_HEADER + "=" + accessControlRequestHeaders);
+
+        long start = System.nanoTime();
+        policy = policy.forPath(path, 0);
+        explanation.stage("path", System.nanoTime() - start, policy.bypass ? "on the bypass list" : "policy " + policy.scope);
+        if (policy.bypass)
+        {
+            explanation.decide(CORSDecision.PATH_BYPASS, "passed on down the filter chain");
+            return explanation.toString();
+        }
+        if (policy.proxyCacheable)
+            explanation.header(VARY_HEADER, ORIGIN_HEADER);
+        if (origin == null)
+        {
+            explanation.decide(CORSDecision.NO_ORIGIN, "passed on down the filter chain");
+            return explanation.toString();
+        }
+
+        start = System.nanoTime();
+        CORSPolicy itemPolicy = items.lookup(path, 0);
+        explanation.stage("item override", System.nanoTime() - start, itemPolicy == null ? "none" : "policy " + itemPolicy.scope);
+        if (itemPolicy != null)
+            policy = itemPolicy;
+        ShadowPolicy shadow = policy.shadow;
+
+        start = System.nanoTime();
+        policy = policy.forOrigin(origin);
+        explanation.stage("origin policy", System.nanoTime() - start, "policy " + policy.scope);
+
+        start = System.nanoTime();
+        String rule = explainOrigins(policy, origin);
+        explanation.stage("origin", System.nanoTime() - start, rule == null ? "matches no allowed origin of " + policy.allowedOrigins : "matches " + rule);
+
+        CORSDecision decision;
+        if (rule == null)
+        {
+            decision = CORSDecision.ORIGIN_REJECTED;
+            explanation.decide(decision, policy.rejectDisallowed ? "answered with an empty 403" : "passed on down the filter chain");
+        }
+        else if (isSimpleRequest(method, accessControlRequestMethod) || !isPreflightRequest(method, accessControlRequestMethod))
+        {
+            decision = isSimpleRequest(method, accessControlRequestMethod) ? CORSDecision.SIMPLE_ALLOWED : CORSDecision.NON_SIMPLE_ALLOWED;
+            explanation.header(ACCESS_CONTROL_ALLOW_ORIGIN_HEADER, origin);
+            if (policy.allowCredentials)
+                explanation.header(ACCESS_CONTROL_ALLOW_CREDENTIALS_HEADER, "true");
+            if (!policy.exposedHeaders.isEmpty())
+                explanation.header(ACCESS_CONTROL_EXPOSE_HEADERS_HEADER, policy.exposedHeadersValue);
+            explanation.decide(decision, "passed on down the filter chain");
+        }
+        else
+        {
+            if (policy.proxyCacheable)
+                explanation.header(VARY_HEADER, PREFLIGHT_VARY);
+            start = System.nanoTime();
+            boolean methodAllowed = isMethodAllowed(policy, accessControlRequestMethod);
+            explanation.stage("method", System.nanoTime() - start, accessControlRequestMethod + (methodAllowed ? " is" : " is not") + " among " + policy.allowedMethods);
+            boolean headersAllowed = false;
+            if (methodAllowed)
+            {
+                start = System.nanoTime();
+                headersAllowed = areHeadersAllowed(policy, accessControlRequestHeaders);
+                explanation.stage("headers", System.nanoTime() - start, "[" + accessControlRequestHeaders + "]" + (headersAllowed ? " are" : " are not") + " among " + policy.allowedHeaders);
+            }
+            decision = !methodAllowed ? CORSDecision.PREFLIGHT_REJECTED_METHOD
+                     : !headersAllowed ? CORSDecision.PREFLIGHT_REJECTED_HEADERS
+                     : CORSDecision.PREFLIGHT_ALLOWED;
+            start = System.nanoTime();
+            PreflightResponse preflightResponse = headersAllowed ? PreflightResponse.allowed(policy, origin)
+                                                : methodAllowed ? PreflightResponse.REJECTED_HEADERS : PreflightResponse.REJECTED_METHOD;
+            explanation.stage("response", System.nanoTime() - start, "built " + decision.label + " headers");
+            preflightResponse.describeTo(explanation);
+            String outcome = decision.isRejected() && policy.rejectDisallowed ? "answered with an empty 403"
+                           : policy.chainPreflight ? "passed on down the filter chain"
+                           : "answered by the filter";
+            if (decision == CORSDecision.PREFLIGHT_ALLOWED && policy.adaptsMaxAge())
+                outcome += "; a stable origin may be granted a max age of up to " + policy.adaptiveMaxAgeCap;
+            if (policy.preflightLimiter.isLimited())
+                outcome += "; unless the origin is over the preflight rate limit";
+            explanation.decide(decision, outcome);
+        }
+        if (shadow != null)
+            explanation.note("shadow policy would decide: " + decide(shadow.policy, origin, method, accessControlRequestMethod, accessControlRequestHeaders).label);
+        return explanation.toString();
+    }
+
+    /**
+     * Does what {@link #matchOrigins} does, without the origin cache.
+     *
+     * @return which allowed origin matches, or null
+     */
+    private String explainOrigins(CORSPolicy policy, String originList)
+    {
+        if (policy.anyOriginAllowed)
+            return "any origin (" + ANY_ORIGIN + ")";
+        for (String origin : originList.split(" "))
+        {
+            if (origin.trim().length() == 0)
+                continue;
+            String rule = policy.originMatcher.explain(origin);
+            if (rule != null)
+                return rule;
+        }
+        return null;
+    }
+
     protected boolean isEnabled(HttpServletRequest request)
     {
         // WebSocket clients such as Chrome 5 implement a version of the WebSocket
         // protocol that does not accept extra response headers on the upgrade response
+        // Almost no request carries an Upgrade header, so look for one before
+        // asking the container for header enumerations
+        if (request.getHeader("Upgrade") == null)
+            return true;
         for (Enumeration connections = request.getHeaders("Connection"); connections.hasMoreElements();)
         {
             String connection = (String)connections.nextElement();
@@ -324,157 +1000,185 @@ public class CrossOriginFilter implements Filter
      * string, a string with capitals, a URI with path components,
      * etc..)
      */
-    private boolean originMatches(String originList)
+    private boolean originMatches(CORSPolicy policy, String originList)
     {
-        if (anyOriginAllowed)
+        if (policy.anyOriginAllowed)
             return true;
 
-        if (originList.trim().length() == 0)
-            return false;
+        Boolean verdict = policy.originCache.get(originList);
+        if (verdict != null)
+            return verdict.booleanValue();
+        boolean result = matchOrigins(policy, originList);
+        policy.originCache.put(originList, Boolean.valueOf(result));
+        return result;
+    }
 
-        String[] origins = originList.split(" ");
-        for (String origin : origins)
+    private boolean matchOrigins(CORSPolicy policy, String originList)
+    {
+        // walk the space-delimited list in place; a list of one origin,
+        // which is what browsers send, is matched without copying it
+        int length = originList.length();
+        for (int start = 0; start < length;)
         {
-            if (origin.trim().length() == 0)
-                continue;
-
-            for (String allowedOrigin : allowedOrigins)
+            int end = originList.indexOf(' ', start);
+            if (end < 0)
+                end = length;
+            if (!isBlank(originList, start, end))
             {
-                if (allowedOrigin.contains("*"))
-                {
-                    Matcher matcher = createMatcher(origin,allowedOrigin);
-                    if (matcher.matches())
-                        return true;
-                }
-                else if (allowedOrigin.equals(origin))
-                {
+                String origin = start == 0 && end == length ? originList : originList.substring(start, end);
+                if (policy.originMatcher.matches(origin))
                     return true;
-                }
             }
+            start = end + 1;
         }
         return false;
     }
 
-    private Matcher createMatcher(String origin, String allowedOrigin)
+    private static boolean isBlank(String value, int start, int end)
     {
-        String regex = parseAllowedWildcardOriginToRegex(allowedOrigin);
-        Pattern pattern = Pattern.compile(regex);
-        return pattern.matcher(origin);
+        for (int i = start; i < end; ++i)
+        {
+            if (value.charAt(i) > ' ')
+                return false;
+        }
+        return true;
     }
 
-    private String parseAllowedWildcardOriginToRegex(String allowedOrigin)
+    private boolean isSimpleRequest(HttpServletRequest request)
     {
-        String regex = allowedOrigin.replace(".","\\.");
-        return regex.replace("*",".*"); // we want to be greedy here to match multiple subdomains, thus we use .*
+        return isSimpleRequest(request.getMethod(), request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER));
     }
 
-    private boolean isSimpleRequest(HttpServletRequest request)
+    private boolean isSimpleRequest(String method, String accessControlRequestMethod)
     {
-        String method = request.getMethod();
         if (SIMPLE_HTTP_METHODS.contains(method))
         {
             // TODO: implement better detection of simple headers
             // The specification says that for a request to be simple, custom request headers must be simple.
             // Here for simplicity I just check if there is a Access-Control-Request-Method header,
             // which is required for preflight requests
-            return request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER) == null;
+            return accessControlRequestMethod == null;
         }
         return false;
     }
 
     private boolean isPreflightRequest(HttpServletRequest request)
     {
-        String method = request.getMethod();
+        return isPreflightRequest(request.getMethod(), request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER));
+    }
+
+    private boolean isPreflightRequest(String method, String accessControlRequestMethod)
+    {
         if (!"OPTIONS".equalsIgnoreCase(method))
             return false;
-        if (request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER) == null)
+        if (accessControlRequestMethod == null)
             return false;
         return true;
     }
 
-    private void handleSimpleResponse(HttpServletRequest request, HttpServletResponse response, String origin)
+    private void handleSimpleResponse(CORSPolicy policy, HttpServletRequest request, HttpServletResponse response, String origin)
     {
-        LOG.finer("entry");
         response.setHeader(ACCESS_CONTROL_ALLOW_ORIGIN_HEADER, origin);
-        if (allowCredentials)
+        if (policy.allowCredentials)
             response.setHeader(ACCESS_CONTROL_ALLOW_CREDENTIALS_HEADER, "true");
-        if (!exposedHeaders.isEmpty())
-            response.setHeader(ACCESS_CONTROL_EXPOSE_HEADERS_HEADER, commify(exposedHeaders));
+        if (!policy.exposedHeaders.isEmpty())
+            response.setHeader(ACCESS_CONTROL_EXPOSE_HEADERS_HEADER, policy.exposedHeadersValue);
     }
 
-    private void handlePreflightResponse(HttpServletRequest request, HttpServletResponse response, String origin)
+    private CORSDecision handlePreflightResponse(CORSPolicy policy, HttpServletRequest request, HttpServletResponse response, String origin)
     {
         LOG.finer("entry");
-        boolean methodAllowed = isMethodAllowed(request);
+        PreflightResponse.Key key = new PreflightResponse.Key(origin,
+                                                              request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER),
+                                                              request.getHeader(ACCESS_CONTROL_REQUEST_HEADERS_HEADER));
+        PreflightResponse preflightResponse = policy.preflightCache.get(key);
+        if (preflightResponse == null)
+        {
+            preflightResponse = computePreflightResponse(policy, request, origin);
+            policy.preflightCache.put(key, preflightResponse);
+        }
+        preflightResponse.apply(response);
+        // the cached headers carry the base max age; a stable origin may
+        // be granted more, which is the only header that varies per origin
+        boolean allowed = preflightResponse.decision == CORSDecision.PREFLIGHT_ALLOWED;
+        PreflightAnalytics.Grant grant = preflightAnalytics.record(key, origin, policy, allowed, System.nanoTime());
+        if (grant != null)
+        {
+            response.setHeader(ACCESS_CONTROL_MAX_AGE_HEADER, grant.maxAgeValue);
+            if (policy.preflightCacheControl)
+                response.setHeader(CACHE_CONTROL_HEADER, grant.cacheControlValue);
+        }
+        return preflightResponse.decision;
+    }
+
+    private PreflightResponse computePreflightResponse(CORSPolicy policy, HttpServletRequest request, String origin)
+    {
+        boolean methodAllowed = isMethodAllowed(policy, request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER));
         if (!methodAllowed)
-            return;
-        boolean headersAllowed = areHeadersAllowed(request);
+            return PreflightResponse.REJECTED_METHOD;
+        boolean headersAllowed = areHeadersAllowed(policy, request.getHeader(ACCESS_CONTROL_REQUEST_HEADERS_HEADER));
         if (!headersAllowed)
-            return;
-        response.setHeader(ACCESS_CONTROL_ALLOW_ORIGIN_HEADER, origin);
-        if (allowCredentials)
-            response.setHeader(ACCESS_CONTROL_ALLOW_CREDENTIALS_HEADER, "true");
-        if (preflightMaxAge > 0)
-            response.setHeader(ACCESS_CONTROL_MAX_AGE_HEADER, String.valueOf(preflightMaxAge));
-        response.setHeader(ACCESS_CONTROL_ALLOW_METHODS_HEADER, commify(allowedMethods));
-        response.setHeader(ACCESS_CONTROL_ALLOW_HEADERS_HEADER, commify(allowedHeaders));
+            return PreflightResponse.REJECTED_HEADERS;
+        return PreflightResponse.allowed(policy, origin);
     }
 
-    private boolean isMethodAllowed(HttpServletRequest request)
+    private boolean isMethodAllowed(CORSPolicy policy, String accessControlRequestMethod)
     {
-        String accessControlRequestMethod = request.getHeader(ACCESS_CONTROL_REQUEST_METHOD_HEADER);
-        LOG.log(Level.FINE,"{0} is {0}", new Object[]{ACCESS_CONTROL_REQUEST_METHOD_HEADER, accessControlRequestMethod});
+        final boolean fine = LOG.isLoggable(Level.FINE);
+        if (fine)
+            LOG.log(Level.FINE,"{0} is {1}", new Object[]{ACCESS_CONTROL_REQUEST_METHOD_HEADER, accessControlRequestMethod});
         boolean result = false;
         if (accessControlRequestMethod != null)
-            result = allowedMethods.contains(accessControlRequestMethod);
-        LOG.log(Level.FINE,"Method {0} is" + (result ? "" : " not") + " among allowed methods {1}", new Object[]{accessControlRequestMethod, allowedMethods});
+            result = policy.allowedMethods.contains(accessControlRequestMethod);
+        if (fine)
+            LOG.log(Level.FINE,"Method {0} is" + (result ? "" : " not") + " among allowed methods {1}", new Object[]{accessControlRequestMethod, policy.allowedMethods});
         return result;
     }
 
-    private boolean areHeadersAllowed(HttpServletRequest request)
+    private boolean areHeadersAllowed(CORSPolicy policy, String accessControlRequestHeaders)
     {
-        String accessControlRequestHeaders = request.getHeader(ACCESS_CONTROL_REQUEST_HEADERS_HEADER);
-        LOG.log(Level.FINE,"{0} is {1}", new Object[]{ACCESS_CONTROL_REQUEST_HEADERS_HEADER, accessControlRequestHeaders});
+        final boolean fine = LOG.isLoggable(Level.FINE);
+        if (fine)
+            LOG.log(Level.FINE,"{0} is {1}", new Object[]{ACCESS_CONTROL_REQUEST_HEADERS_HEADER, accessControlRequestHeaders});
         boolean result = true;
         if (accessControlRequestHeaders != null)
         {
-            String[] headers = accessControlRequestHeaders.split(",");
-            for (String header : headers)
+            // walk the comma-separated list in place, trimming each name by
+            // moving its bounds, and look it up in the precomputed set
+            int length = accessControlRequestHeaders.length();
+            for (int start = 0; start < length;)
             {
-                boolean headerAllowed = false;
-                for (String allowedHeader : allowedHeaders)
-                {
-                    if (header.trim().equalsIgnoreCase(allowedHeader.trim()))
-                    {
-                        headerAllowed = true;
-                        break;
-                    }
-                }
-                if (!headerAllowed)
+                int end = accessControlRequestHeaders.indexOf(',', start);
+                if (end < 0)
+                    end = length;
+                int from = start;
+                int to = end;
+                while (from < to && accessControlRequestHeaders.charAt(from) <= ' ')
+                    ++from;
+                while (to > from && accessControlRequestHeaders.charAt(to - 1) <= ' ')
+                    --to;
+                if (from < to && !policy.allowedHeaderNames.contains(accessControlRequestHeaders, from, to))
                 {
                     result = false;
                     break;
                 }
+                start = end + 1;
             }
         }
-        LOG.log(Level.FINE,"Headers [{0}] are" + (result ? "" : " not") + " among allowed headers {1}", new Object[]{accessControlRequestHeaders, allowedHeaders});
+        if (fine)
+            LOG.log(Level.FINE,"Headers [{0}] are" + (result ? "" : " not") + " among allowed headers {1}", new Object[]{accessControlRequestHeaders, policy.allowedHeaders});
         return result;
     }
 
-    private String commify(List<String> strings)
+    public void destroy()
     {
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < strings.size(); ++i)
+        synchronized (configLock)
         {
-            if (i > 0) builder.append(",");
-            String string = strings.get(i);
-            builder.append(string);
+            closeOriginList();
+            openRecorder(null);
+            config = null;
+            items.unpublish();
+            policy = CORSPolicy.EMPTY;
         }
-        return builder.toString();
-    }
-
-    public void destroy()
-    {
-        reset();
     }
 }
@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.List;
+
+/**
+ * <p>An immutable set of HTTP header names, compared without regard to
+ * case, which can be probed with a range of a longer string.</p>
+ *
+ * <p>Names are stored lower-cased in an open-addressing table, and a
+ * lookup hashes and compares the characters of the range in place, so
+ * checking each name of an Access-Control-Request-Headers value takes
+ * constant time and allocates nothing. Header names are ASCII tokens, so
+ * only ASCII letters are folded.</p>
+ */
+final class HeaderNameSet
+{
+    private final String[] table;
+    private final int mask;
+
+    /**
+     * @param names the header names; they are trimmed, and blank ones are
+     *              ignored
+     */
+    HeaderNameSet(List<String> names)
+    {
+        int capacity = 4;
+        while (capacity < names.size() * 2)
+            capacity <<= 1;
+        table = new String[capacity];
+        mask = capacity - 1;
+        for (String name : names)
+        {
+            String key = toLowerCase(name.trim());
+            if (key.length() == 0)
+                continue;
+            int slot = hash(key, 0, key.length()) & mask;
+            while (table[slot] != null && !table[slot].equals(key))
+                slot = (slot + 1) & mask;
+            table[slot] = key;
+        }
+    }
+
+    /**
+     * @return whether <code>value.substring(start, end)</code> is in this
+     *         set, ignoring case
+     */
+    boolean contains(String value, int start, int end)
+    {
+        int length = end - start;
+        int slot = hash(value, start, end) & mask;
+        for (String key = table[slot]; key != null; key = table[slot = (slot + 1) & mask])
+        {
+            if (key.length() == length && key.regionMatches(true, 0, value, start, length))
+                return true;
+        }
+        return false;
+    }
+
+    private static int hash(String value, int start, int end)
+    {
+        int h = 0;
+        for (int i = start; i < end; ++i)
+            h = 31 * h + toLowerCase(value.charAt(i));
+        return h ^ (h >>> 16);
+    }
+
+    private static char toLowerCase(char c)
+    {
+        return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    private static String toLowerCase(String value)
+    {
+        char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; ++i)
+            chars[i] = toLowerCase(chars[i]);
+        return new String(chars);
+    }
+}
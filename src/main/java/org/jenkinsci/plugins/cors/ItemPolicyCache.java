@@ -0,0 +1,176 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.FilterConfig;
+
+import static org.jenkinsci.plugins.cors.CrossOriginFilter.*;
+
+/**
+ * <p>The CORS overrides of Jenkins items (jobs, or anything else with a
+ * URL of its own), keyed by the URL prefix of the item.</p>
+ *
+ * <p>Overrides are pushed in by item listeners as items are loaded,
+ * saved, renamed and deleted, so a request never has to resolve the item
+ * it is addressed to. Each override is compiled once into a full
+ * {@link CORSPolicy}, falling back to the global parameters, and kept in
+ * a concurrent map until its item changes or the filter is reconfigured.
+ * A policy is tagged with the generation it was compiled in, so that
+ * changing one override starts the preflight stability of that item's
+ * origins over, and leaves the other items alone.
+ * The compiled policies are indexed by a {@link PathTrie}, rebuilt and
+ * swapped in whole whenever an override changes, so that a request finds
+ * the override of the innermost item it addresses in one trie walk,
+ * without allocating.</p>
+ *
+ * <p>Besides its own URL, an item is reached under the URL of any view,
+ * so each override is also indexed under <code>/view/&#42;</code> plus
+ * that URL. Items reached through nested views are not covered.</p>
+ *
+ * <p>{@link #rebuild} and the methods changing overrides must be called
+ * with the lock of the filter configuration held; {@link #lookup} may be
+ * called from any thread.</p>
+ */
+final class ItemPolicyCache
+{
+    private static final String VIEW_PREFIX = "/view/*";
+
+    /** The parameters of each override, by URL prefix. */
+    private final ConcurrentMap<String,Map<String,String>> overrides = new ConcurrentHashMap<String,Map<String,String>>();
+    /** The compiled policy of each override, by URL prefix; entries are dropped when their item changes. */
+    private final ConcurrentMap<String,CORSPolicy> policies = new ConcurrentHashMap<String,CORSPolicy>();
+    private volatile PathTrie<CORSPolicy> routes = new PathTrie<CORSPolicy>();
+
+    /**
+     * Sets the override of the item at <code>prefix</code>, or removes it
+     * if <code>params</code> is null. Overrides of items below it are kept.
+     *
+     * @param prefix the URL of the item relative to the context path, such
+     *               as <code>/job/foo/</code>
+     * @param params the parameters of the override, named as the global
+     *               filter parameters
+     */
+    void put(String prefix, Map<String,String> params)
+    {
+        Map<String,String> override = overrides.get(prefix);
+        if (params == null ? override == null : params.equals(override))
+            return; // saved without a change to its override
+        policies.remove(prefix);
+        if (params == null)
+            overrides.remove(prefix);
+        else
+            overrides.put(prefix, new HashMap<String,String>(params));
+    }
+
+    /** Replaces all overrides, as when the items are first loaded. */
+    void putAll(Map<String,Map<String,String>> params)
+    {
+        overrides.clear();
+        policies.clear();
+        for (Map.Entry<String,Map<String,String>> entry : params.entrySet())
+            overrides.put(entry.getKey(), new HashMap<String,String>(entry.getValue()));
+    }
+
+    /**
+     * Removes the overrides of the item at <code>prefix</code> and of all
+     * items below it, as when that item is renamed, moved or deleted.
+     */
+    void removeAll(String prefix)
+    {
+        for (Iterator<String> i = overrides.keySet().iterator(); i.hasNext();)
+        {
+            String key = i.next();
+            if (key.startsWith(prefix))
+            {
+                i.remove();
+                policies.remove(key);
+            }
+        }
+    }
+
+    /** @return the number of items with an override */
+    int size()
+    {
+        return overrides.size();
+    }
+
+    /**
+     * Drops every compiled policy, so that the next {@link #rebuild}
+     * compiles all overrides again, as when the global parameters they
+     * fall back to change. The published policies stay in effect until
+     * then.
+     */
+    void invalidate()
+    {
+        policies.clear();
+    }
+
+    /**
+     * Compiles the overrides that changed since the last rebuild, tagged
+     * with <code>generation</code>, and publishes them with the others.
+     *
+     * @param config           the global filter parameters, which blank
+     *                         override parameters fall back to
+     * @param preflightLimiter the limiter of the global policy, which the
+     *                         item policies share
+     */
+    void rebuild(FilterConfig config, long generation, PackedOriginSet listedOrigins, PreflightRateLimiter preflightLimiter)
+    {
+        PathTrie<CORSPolicy> routes = new PathTrie<CORSPolicy>();
+        for (Map.Entry<String,Map<String,String>> entry : overrides.entrySet())
+        {
+            String prefix = entry.getKey();
+            CORSPolicy policy = policies.get(prefix);
+            if (policy == null)
+            {
+                policy = CORSPolicy.compileItem(withOverride(config, prefix, entry.getValue()), generation, listedOrigins, preflightLimiter);
+                policies.put(prefix, policy);
+            }
+            routes.put(prefix, policy);
+            routes.put(VIEW_PREFIX + prefix, policy);
+        }
+        this.routes = routes;
+    }
+
+    /** Stops applying overrides, as when the filter is destroyed, but keeps them for the next configuration. */
+    void unpublish()
+    {
+        policies.clear();
+        routes = new PathTrie<CORSPolicy>();
+    }
+
+    /**
+     * @param path the request URI
+     * @param from the length of the context path
+     * @return the policy of the innermost item with an override that
+     *         <code>path</code> addresses, or null
+     */
+    CORSPolicy lookup(String path, int from)
+    {
+        PathTrie<CORSPolicy> routes = this.routes;
+        return routes.isEmpty() ? null : routes.lookup(path, from);
+    }
+
+    /** @return the global parameters, plus the override parameters under {@link CrossOriginFilter#ITEM_PARAM_PREFIX} */
+    private static FilterConfig withOverride(FilterConfig config, String prefix, Map<String,String> params)
+    {
+        Map<String,String> merged = new HashMap<String,String>();
+        for (Enumeration<?> names = config.getInitParameterNames(); names.hasMoreElements();)
+        {
+            String name = (String)names.nextElement();
+            merged.put(name, config.getInitParameter(name));
+        }
+        for (Map.Entry<String,String> param : params.entrySet())
+        {
+            if (param.getValue() != null)
+                merged.put(ITEM_PARAM_PREFIX + param.getKey(), param.getValue());
+        }
+        merged.put(ITEM_PARAM_PREFIX + PATH_PARAM, prefix);
+        return new FilterConfigWrapper(config.getFilterName(), config.getServletContext(), merged);
+    }
+}
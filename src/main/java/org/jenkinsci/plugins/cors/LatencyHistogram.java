@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of durations in nanoseconds, with fixed log-linear
+ * buckets in the manner of HdrHistogram.</p>
+ *
+ * <p>Every power of two is split into {@link #SUB_BUCKETS} equal buckets,
+ * so a percentile is reported to within 12.5% of the true value, from
+ * one nanosecond up to about a minute; longer durations land in the last
+ * bucket. Recording computes the bucket from the leading zeros of the
+ * value and increments one cell, so it neither allocates nor locks.
+ * Like {@link StripedCounter}, the cells are spread over stripes picked
+ * by thread id, so threads recording at once do not contend.</p>
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Durations of 2^MAX_EXPONENT ns (about 69 s) and more share the last bucket. */
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+    private static final int MAX_STRIPES = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    LatencyHistogram()
+    {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES)
+            stripes <<= 1;
+        this.cells = new AtomicLongArray(stripes * BUCKETS);
+        this.mask = stripes - 1;
+    }
+
+    void record(long nanos)
+    {
+        cells.incrementAndGet(stripe() * BUCKETS + bucketOf(nanos));
+    }
+
+    /** @return the number of recorded durations */
+    long count()
+    {
+        long count = 0L;
+        for (int i = 0; i < cells.length(); ++i)
+            count += cells.get(i);
+        return count;
+    }
+
+    /**
+     * @param quantile between 0 and 1, for example 0.99
+     * @return the highest duration, in nanoseconds, of the bucket holding
+     *         that quantile of the recorded durations, or 0 if none was
+     *         recorded
+     */
+    long percentile(double quantile)
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < cells.length(); ++i)
+        {
+            long count = cells.get(i);
+            counts[i % BUCKETS] += count;
+            total += count;
+        }
+        if (total == 0)
+            return 0L;
+        long rank = Math.max(1L, (long)Math.ceil(quantile * total));
+        long seen = 0L;
+        for (int bucket = 0; bucket < BUCKETS; ++bucket)
+        {
+            seen += counts[bucket];
+            if (seen >= rank)
+                return highestValueOf(bucket);
+        }
+        return highestValueOf(BUCKETS - 1);
+    }
+
+    static int bucketOf(long nanos)
+    {
+        long value = nanos < 0 ? 0 : nanos > MAX_VALUE ? MAX_VALUE : nanos;
+        if (value < SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long highestValueOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long width = 1L << (exponent - SUB_BITS);
+        return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+    }
+
+    private int stripe()
+    {
+        long id = Thread.currentThread().getId();
+        int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
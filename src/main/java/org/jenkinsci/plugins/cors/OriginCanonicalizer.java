@@ -0,0 +1,80 @@
+package org.jenkinsci.plugins.cors;
+
+/**
+ * <p>Brings origins to one spelling, so that an allowlist needs to list
+ * each origin only once.</p>
+ *
+ * <p>The canonical form of <code>scheme://host[:port]</code> has the
+ * scheme and host in lower case, no port if it is the default one of an
+ * http, https, ws or wss scheme (an empty port counts as the default),
+ * and no trailing slash. Anything without a "://", such as the "null"
+ * origin, is left alone, and only ASCII letters are lowered: browsers
+ * send internationalized hosts in their ASCII form.</p>
+ *
+ * <p>An origin that is already canonical, which is what browsers send,
+ * is returned as the same instance after a single scan, without
+ * allocating.</p>
+ */
+final class OriginCanonicalizer
+{
+    private OriginCanonicalizer()
+    {
+    }
+
+    static String canonicalize(String origin)
+    {
+        int schemeEnd = origin.indexOf("://");
+        if (schemeEnd <= 0)
+            return origin;
+        int hostStart = schemeEnd + 3;
+        int end = origin.length();
+        if (end > hostStart && origin.charAt(end - 1) == '/')
+            --end;
+        // the port follows the last colon, unless that colon is inside
+        // the brackets of an IPv6 address
+        int hostEnd = end;
+        int colon = origin.lastIndexOf(':', end - 1);
+        if (colon >= hostStart && colon > origin.lastIndexOf(']', end - 1))
+        {
+            if (isDefaultPort(origin, schemeEnd, colon + 1, end))
+                end = colon;
+            hostEnd = colon;
+        }
+        boolean lower = true;
+        for (int i = 0; i < hostEnd && lower; ++i)
+        {
+            char c = origin.charAt(i);
+            lower = c < 'A' || c > 'Z';
+        }
+        if (lower && end == origin.length())
+            return origin;
+
+        StringBuilder canonical = new StringBuilder(end);
+        for (int i = 0; i < hostEnd; ++i)
+        {
+            char c = origin.charAt(i);
+            canonical.append(c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c);
+        }
+        canonical.append(origin, hostEnd, end);
+        return canonical.toString();
+    }
+
+    private static boolean isDefaultPort(String origin, int schemeEnd, int portStart, int portEnd)
+    {
+        if (portStart == portEnd)
+            return true;
+        String port;
+        if (isScheme(origin, schemeEnd, "http") || isScheme(origin, schemeEnd, "ws"))
+            port = "80";
+        else if (isScheme(origin, schemeEnd, "https") || isScheme(origin, schemeEnd, "wss"))
+            port = "443";
+        else
+            return false;
+        return portEnd - portStart == port.length() && origin.startsWith(port, portStart);
+    }
+
+    private static boolean isScheme(String origin, int schemeEnd, String scheme)
+    {
+        return schemeEnd == scheme.length() && origin.regionMatches(true, 0, scheme, 0, schemeEnd);
+    }
+}
@@ -0,0 +1,205 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * <p>An allowlist of exact origins kept in a file, one per line, and
+ * reloaded whenever the file changes.</p>
+ *
+ * <p>Blank lines and lines starting with "#" are ignored. Wildcard
+ * origins belong in the <b>allowedOrigins</b> parameter, so lines
+ * containing "*" are skipped.</p>
+ *
+ * <p>The origins are held in a {@link PackedOriginSet}. A daemon thread
+ * polls the modification time and length of the file every
+ * {@link #POLL_MILLIS} milliseconds and, when they change, waits for the
+ * writes to settle, reads it into a new set and hands it to the
+ * {@link Listener}. The plugin runs on Java 6, which has no file watch
+ * service. Requests keep using the previous set until then, and a file
+ * that cannot be read, or is deleted, leaves the previous set in
+ * place.</p>
+ */
+final class OriginListFile
+{
+    private static final Logger LOG = Logger.getLogger("org.jenkins.ci.plugins.cors.CrossOriginFilter");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final long POLL_MILLIS = Long.getLong(OriginListFile.class.getName() + ".pollMillis", 2000L);
+    private static final long SETTLE_MILLIS = 250;
+
+    interface Listener
+    {
+        void originsChanged(OriginListFile source);
+    }
+
+    private final File file;
+    private final Listener listener;
+    private volatile PackedOriginSet origins = PackedOriginSet.EMPTY;
+    private volatile Thread poller;
+    /** The modification time and length of the file when it was last read; only touched by {@link #load()}. */
+    private long lastModified;
+    private long length;
+
+    private OriginListFile(File file, Listener listener)
+    {
+        this.file = file;
+        this.listener = listener;
+    }
+
+    /**
+     * Loads <code>path</code>, if it exists, and starts polling it.
+     */
+    static OriginListFile open(String path, Listener listener)
+    {
+        OriginListFile originList = new OriginListFile(new File(normalize(path)), listener);
+        originList.load();
+        originList.poll();
+        return originList;
+    }
+
+    /** @return <code>path</code> as absolute and canonical as {@link #getPath()} */
+    static String normalize(String path)
+    {
+        File file = new File(path).getAbsoluteFile();
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch (IOException x)
+        {
+            return file.getPath();
+        }
+    }
+
+    String getPath()
+    {
+        return file.getPath();
+    }
+
+    PackedOriginSet origins()
+    {
+        return origins;
+    }
+
+    void close()
+    {
+        Thread poller = this.poller;
+        this.poller = null;
+        if (poller != null)
+            poller.interrupt();
+    }
+
+    /**
+     * @return whether the file was read and held a different set of
+     *         origins than before
+     */
+    private boolean load()
+    {
+        // taken before reading, so that a write during the read is not missed
+        lastModified = file.lastModified();
+        length = file.length();
+        if (!file.exists())
+        {
+            LOG.log(Level.WARNING,"Cross-origin filter, allowed origins file {0} does not exist", file);
+            return false;
+        }
+        List<String> lines = new ArrayList<String>();
+        try
+        {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            try
+            {
+                for (String line; (line = reader.readLine()) != null; )
+                    lines.add(line);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch (IOException x)
+        {
+            LOG.log(Level.WARNING,"Cross-origin filter, could not read allowed origins file " + file, x);
+            return false;
+        }
+        List<String> allowedOrigins = new ArrayList<String>(lines.size());
+        int skipped = 0;
+        for (String line : lines)
+        {
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#')
+                continue;
+            if (line.indexOf('*') >= 0)
+                ++skipped;
+            else
+                allowedOrigins.add(OriginCanonicalizer.canonicalize(line));
+        }
+        PackedOriginSet loaded = PackedOriginSet.of(allowedOrigins);
+        // editors often write a file in several steps; only a change in
+        // content is worth a new policy, and the caches that go with it
+        if (loaded.sameAs(origins))
+            return false;
+        origins = loaded;
+        if (skipped > 0)
+            LOG.log(Level.WARNING,"Cross-origin filter, skipped {0} wildcard origins in {1}; use the " + CrossOriginFilter.ALLOWED_ORIGINS_PARAM + " parameter for those", new Object[]{skipped, file});
+        LOG.log(Level.INFO,"Cross-origin filter, loaded {0} allowed origins from {1}", new Object[]{origins.size(), file});
+        return true;
+    }
+
+    private void poll()
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                pollLoop();
+            }
+        }, "CORS allowed origins poller for " + file);
+        thread.setDaemon(true);
+        poller = thread;
+        thread.start();
+    }
+
+    private void pollLoop()
+    {
+        try
+        {
+            while (poller == Thread.currentThread())
+            {
+                Thread.sleep(POLL_MILLIS);
+                if (!changedSinceLoad())
+                    continue;
+                // a file being written may be caught half way, so wait for
+                // it to stop changing before reading it
+                long settledModified, settledLength;
+                do
+                {
+                    settledModified = file.lastModified();
+                    settledLength = file.length();
+                    Thread.sleep(SETTLE_MILLIS);
+                }
+                while (file.lastModified() != settledModified || file.length() != settledLength);
+                if (poller == Thread.currentThread() && load())
+                    listener.originsChanged(this);
+            }
+        }
+        catch (InterruptedException x)
+        {
+            // closed
+        }
+    }
+
+    private boolean changedSinceLoad()
+    {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+}
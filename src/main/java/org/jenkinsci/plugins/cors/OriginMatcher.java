@@ -0,0 +1,225 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * <p>Matches a single origin against the allowed origins of a
+ * {@link CrossOriginFilter}.</p>
+ *
+ * <p>The allowed origins are compiled once, when the filter is
+ * initialized, into three groups:
+ * <ul>
+ * <li>exact origins, which are looked up in a hash set, and those of an
+ * allowed origins file, which are looked up in a
+ * {@link PackedOriginSet};</li>
+ * <li>wildcard origins whose only special character is "*" (for example
+ * http://*.example.com), which are split into their literal segments and
+ * matched in place, left to right, without building a regular
+ * expression;</li>
+ * <li>origins that use further regular expression syntax (for example
+ * https?://*.example.[a-z]{3}), which are compiled exactly once to an
+ * {@link OriginPattern}.</li>
+ * </ul></p>
+ *
+ * <p>Exact and wildcard origins are brought to the form of
+ * {@link OriginCanonicalizer} when they are compiled, and so is every
+ * origin matched against them, so that "HTTPS://Example.com:443" is
+ * allowed by "https://example.com" and the other way round.</p>
+ *
+ * <p>Matching an origin that is already canonical, as browsers send it,
+ * against the first two groups allocates nothing.
+ * Matching against any group takes time linear in the length of the
+ * origin, however the allowed origins are written, so a crafted Origin
+ * header cannot tie up a request thread.</p>
+ */
+final class OriginMatcher
+{
+    private static final Logger LOG = Logger.getLogger("org.jenkins.ci.plugins.cors.CrossOriginFilter");
+    private static final String REGEX_SPECIAL_CHARS = "\\^$|?+()[]{}";
+
+    private final Set<String> exactOrigins;
+    private final PackedOriginSet listedOrigins;
+    private final WildcardOrigin[] wildcardOrigins;
+    private final OriginPattern[] regexOrigins;
+
+    private OriginMatcher(Set<String> exactOrigins, PackedOriginSet listedOrigins, List<WildcardOrigin> wildcardOrigins, List<OriginPattern> regexOrigins)
+    {
+        this.exactOrigins = exactOrigins;
+        this.listedOrigins = listedOrigins;
+        this.wildcardOrigins = wildcardOrigins.toArray(new WildcardOrigin[wildcardOrigins.size()]);
+        this.regexOrigins = regexOrigins.toArray(new OriginPattern[regexOrigins.size()]);
+    }
+
+    /**
+     * @param allowedOrigins the trimmed, non-empty allowed origins, as
+     *                       configured by the user
+     * @param listedOrigins  the exact origins read from an allowed origins
+     *                       file, which are shared rather than copied
+     */
+    static OriginMatcher compile(List<String> allowedOrigins, PackedOriginSet listedOrigins)
+    {
+        Set<String> exact = new HashSet<String>();
+        List<WildcardOrigin> wildcards = new ArrayList<WildcardOrigin>();
+        List<OriginPattern> regexes = new ArrayList<OriginPattern>();
+        for (String allowedOrigin : allowedOrigins)
+        {
+            if (!allowedOrigin.contains("*"))
+                exact.add(OriginCanonicalizer.canonicalize(allowedOrigin));
+            else if (isPlainWildcard(allowedOrigin))
+                wildcards.add(new WildcardOrigin(OriginCanonicalizer.canonicalize(allowedOrigin)));
+            else
+            {
+                try
+                {
+                    regexes.add(OriginPattern.compile(parseAllowedWildcardOriginToRegex(allowedOrigin)));
+                }
+                catch (IllegalArgumentException x)
+                {
+                    LOG.log(Level.WARNING,"Cross-origin filter, ignoring allowed origin {0}: {1}", new Object[]{allowedOrigin, x.getMessage()});
+                }
+            }
+        }
+        return new OriginMatcher(exact, listedOrigins, wildcards, regexes);
+    }
+
+    /**
+     * @param origin the raw Origin header; it is canonicalized here, so
+     *               that it matches however its scheme, host and default
+     *               port are spelled
+     */
+    boolean matches(String origin)
+    {
+        String canonical = OriginCanonicalizer.canonicalize(origin);
+        if (exactOrigins.contains(canonical) || listedOrigins.contains(canonical))
+            return true;
+        for (WildcardOrigin wildcardOrigin : wildcardOrigins)
+        {
+            if (wildcardOrigin.matches(canonical))
+                return true;
+        }
+        // regular expressions are written by the user and may spell
+        // things either way, so they get both forms
+        for (OriginPattern regexOrigin : regexOrigins)
+        {
+            if (regexOrigin.matches(canonical) || (canonical != origin && regexOrigin.matches(origin)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Does what {@link #matches} does, for explaining a decision.
+     *
+     * @return which allowed origin <code>origin</code> matches, or null
+     */
+    String explain(String origin)
+    {
+        String canonical = OriginCanonicalizer.canonicalize(origin);
+        if (exactOrigins.contains(canonical))
+            return "exact origin " + canonical;
+        if (listedOrigins.contains(canonical))
+            return "allowed origins file entry " + canonical;
+        for (WildcardOrigin wildcardOrigin : wildcardOrigins)
+        {
+            if (wildcardOrigin.matches(canonical))
+                return "wildcard " + wildcardOrigin;
+        }
+        for (OriginPattern regexOrigin : regexOrigins)
+        {
+            if (regexOrigin.matches(canonical) || (canonical != origin && regexOrigin.matches(origin)))
+                return "pattern " + regexOrigin;
+        }
+        return null;
+    }
+
+    /**
+     * Checks an allowed origin the way {@link #compile} reads it, for
+     * rejecting a configuration rather than ignoring the origin.
+     *
+     * @throws IllegalArgumentException if <code>allowedOrigin</code> is a
+     *         regular expression that cannot be compiled
+     */
+    static void validate(String allowedOrigin)
+    {
+        if (allowedOrigin.contains("*") && !isPlainWildcard(allowedOrigin))
+            OriginPattern.compile(parseAllowedWildcardOriginToRegex(allowedOrigin));
+    }
+
+    private static boolean isPlainWildcard(String allowedOrigin)
+    {
+        for (int i = 0; i < allowedOrigin.length(); ++i)
+        {
+            if (REGEX_SPECIAL_CHARS.indexOf(allowedOrigin.charAt(i)) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static String parseAllowedWildcardOriginToRegex(String allowedOrigin)
+    {
+        String regex = allowedOrigin.replace(".","\\.");
+        return regex.replace("*",".*"); // we want to be greedy here to match multiple subdomains, thus we use .*
+    }
+
+    /**
+     * An allowed origin in which every "*" matches any run of characters,
+     * with all other characters matched literally.
+     */
+    private static final class WildcardOrigin
+    {
+        private final String allowedOrigin;
+        private final String prefix;
+        private final String[] middles;
+        private final String suffix;
+        private final int minLength;
+
+        WildcardOrigin(String allowedOrigin)
+        {
+            this.allowedOrigin = allowedOrigin;
+            String[] segments = allowedOrigin.split("\\*", -1);
+            prefix = segments[0];
+            suffix = segments[segments.length - 1];
+            middles = new String[segments.length - 2];
+            int length = prefix.length() + suffix.length();
+            for (int i = 1; i < segments.length - 1; ++i)
+            {
+                middles[i - 1] = segments[i];
+                length += segments[i].length();
+            }
+            minLength = length;
+        }
+
+        boolean matches(String origin)
+        {
+            if (origin.length() < minLength)
+                return false;
+            if (!origin.startsWith(prefix) || !origin.endsWith(suffix))
+                return false;
+            // a "*" only ever stands for characters between literal
+            // segments, so taking the leftmost match of each segment
+            // leaves the most room for the ones that follow it
+            int from = prefix.length();
+            int limit = origin.length() - suffix.length();
+            for (String middle : middles)
+            {
+                int index = origin.indexOf(middle, from);
+                if (index < 0 || index + middle.length() > limit)
+                    return false;
+                from = index + middle.length();
+            }
+            return true;
+        }
+
+        @Override
+        public String toString()
+        {
+            return allowedOrigin;
+        }
+    }
+}
@@ -0,0 +1,586 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A regular expression over origins, matched in time linear in the
+ * length of the origin.</p>
+ *
+ * <p>{@link java.util.regex.Pattern} backtracks, so an allowed origin such
+ * as https?://*.*.example.* can take time polynomial, or worse, in the
+ * length of an Origin header that an attacker chooses. This class
+ * instead compiles the expression to a nondeterministic automaton and
+ * simulates all of its states at once (Thompson's construction), which
+ * reads each character of the origin once and costs at most the number
+ * of states per character.</p>
+ *
+ * <p>It supports the syntax that makes sense for origins: literals and
+ * escapes, ".", character classes (including \d, \w and \s), groups
+ * with "|", the quantifiers "?", "*", "+" and "{n,m}" (a lazy "?"
+ * suffix is accepted and makes no difference to whether the whole
+ * origin matches), and "^" and "$" at the ends of the expression. Other
+ * constructs, such as back-references and look-around, cannot be
+ * matched in linear time and are refused with an
+ * {@link IllegalArgumentException}.</p>
+ */
+final class OriginPattern
+{
+    /** Bounds the automaton built from counted repetitions such as {1,1000}. */
+    static final int MAX_STATES = 4096;
+
+    private static final int CHAR = 0;
+    private static final int SET = 1;
+    private static final int ANY = 2;
+    private static final int SPLIT = 3;
+    private static final int MATCH = 4;
+
+    private final String regex;
+    private final int[] kinds;
+    /** The character of a CHAR state, or the index in {@link #sets} of a SET state. */
+    private final int[] arguments;
+    private final int[] outs;
+    /** The second successor of a SPLIT state. */
+    private final int[] alternatives;
+    private final CharSet[] sets;
+    private final int start;
+
+    private OriginPattern(String regex, Compiler compiler, int start)
+    {
+        this.regex = regex;
+        this.kinds = toArray(compiler.kinds);
+        this.arguments = toArray(compiler.arguments);
+        this.outs = toArray(compiler.outs);
+        this.alternatives = toArray(compiler.alternatives);
+        this.sets = compiler.sets.toArray(new CharSet[compiler.sets.size()]);
+        this.start = start;
+    }
+
+    /**
+     * @throws IllegalArgumentException if <code>regex</code> is malformed
+     *         or uses syntax that cannot be matched in linear time
+     */
+    static OriginPattern compile(String regex)
+    {
+        Node node = new Parser(regex).parse();
+        Compiler compiler = new Compiler();
+        int match = compiler.state(MATCH, 0, -1, -1);
+        int start = node.compile(compiler, match);
+        return new OriginPattern(regex, compiler, start);
+    }
+
+    boolean matches(String origin)
+    {
+        int size = kinds.length;
+        int[] current = new int[size];
+        int[] next = new int[size];
+        int[] marks = new int[size];
+        int[] stack = new int[2 * size + 1];
+        int generation = 1;
+        int count = close(start, current, 0, marks, generation, stack);
+        for (int i = 0; i < origin.length() && count > 0; ++i)
+        {
+            char c = origin.charAt(i);
+            ++generation;
+            int nextCount = 0;
+            for (int j = 0; j < count; ++j)
+            {
+                int state = current[j];
+                if (step(state, c))
+                    nextCount = close(outs[state], next, nextCount, marks, generation, stack);
+            }
+            int[] swap = current;
+            current = next;
+            next = swap;
+            count = nextCount;
+        }
+        for (int j = 0; j < count; ++j)
+        {
+            if (kinds[current[j]] == MATCH)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return regex;
+    }
+
+    private boolean step(int state, char c)
+    {
+        switch (kinds[state])
+        {
+            case CHAR:
+                return arguments[state] == c;
+            case SET:
+                return sets[arguments[state]].contains(c);
+            case ANY:
+                // like Pattern, "." does not match line terminators
+                return c != '\n' && c != '\r' && c != '\u0085' && c != 0x2028 && c != 0x2029;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Adds <code>state</code>, and every state reachable from it without
+     * reading a character, to <code>list</code>, skipping the states
+     * already marked with <code>generation</code>.
+     *
+     * @return the new length of <code>list</code>
+     */
+    private int close(int state, int[] list, int count, int[] marks, int generation, int[] stack)
+    {
+        int top = 0;
+        stack[top++] = state;
+        while (top > 0)
+        {
+            int s = stack[--top];
+            if (marks[s] == generation)
+                continue;
+            marks[s] = generation;
+            if (kinds[s] == SPLIT)
+            {
+                stack[top++] = alternatives[s];
+                stack[top++] = outs[s];
+            }
+            else
+            {
+                list[count++] = s;
+            }
+        }
+        return count;
+    }
+
+    private static int[] toArray(List<Integer> list)
+    {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; ++i)
+            array[i] = list.get(i).intValue();
+        return array;
+    }
+
+    /** Accumulates the states of the automaton. */
+    private static final class Compiler
+    {
+        final List<Integer> kinds = new ArrayList<Integer>();
+        final List<Integer> arguments = new ArrayList<Integer>();
+        final List<Integer> outs = new ArrayList<Integer>();
+        final List<Integer> alternatives = new ArrayList<Integer>();
+        final List<CharSet> sets = new ArrayList<CharSet>();
+
+        int state(int kind, int argument, int out, int alternative)
+        {
+            if (kinds.size() >= MAX_STATES)
+                throw new IllegalArgumentException("expression needs more than " + MAX_STATES + " states");
+            kinds.add(kind);
+            arguments.add(argument);
+            outs.add(out);
+            alternatives.add(alternative);
+            return kinds.size() - 1;
+        }
+
+        void patch(int state, int out, int alternative)
+        {
+            outs.set(state, out);
+            alternatives.set(state, alternative);
+        }
+
+        int set(CharSet set)
+        {
+            sets.add(set);
+            return sets.size() - 1;
+        }
+    }
+
+    /** A node of the parsed expression. */
+    private static abstract class Node
+    {
+        /**
+         * Builds the states for this node, leading to <code>next</code>.
+         *
+         * @return the state to enter this node by
+         */
+        abstract int compile(Compiler compiler, int next);
+    }
+
+    private static final class Empty extends Node
+    {
+        int compile(Compiler compiler, int next)
+        {
+            return next;
+        }
+    }
+
+    private static final class Atom extends Node
+    {
+        private final int kind;
+        private final int character;
+        private final CharSet set;
+
+        Atom(int kind, int character, CharSet set)
+        {
+            this.kind = kind;
+            this.character = character;
+            this.set = set;
+        }
+
+        int compile(Compiler compiler, int next)
+        {
+            int argument = kind == SET ? compiler.set(set) : character;
+            return compiler.state(kind, argument, next, -1);
+        }
+    }
+
+    private static final class Concatenation extends Node
+    {
+        private final List<Node> nodes;
+
+        Concatenation(List<Node> nodes)
+        {
+            this.nodes = nodes;
+        }
+
+        int compile(Compiler compiler, int next)
+        {
+            for (int i = nodes.size() - 1; i >= 0; --i)
+                next = nodes.get(i).compile(compiler, next);
+            return next;
+        }
+    }
+
+    private static final class Alternation extends Node
+    {
+        private final List<Node> nodes;
+
+        Alternation(List<Node> nodes)
+        {
+            this.nodes = nodes;
+        }
+
+        int compile(Compiler compiler, int next)
+        {
+            int entry = nodes.get(nodes.size() - 1).compile(compiler, next);
+            for (int i = nodes.size() - 2; i >= 0; --i)
+                entry = compiler.state(SPLIT, 0, nodes.get(i).compile(compiler, next), entry);
+            return entry;
+        }
+    }
+
+    private static final class Repetition extends Node
+    {
+        private final Node node;
+        private final int min;
+        /** -1 for no upper bound */
+        private final int max;
+
+        Repetition(Node node, int min, int max)
+        {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+
+        int compile(Compiler compiler, int next)
+        {
+            int entry;
+            if (max < 0)
+            {
+                // a loop: either go round the node again or leave
+                int loop = compiler.state(SPLIT, 0, -1, -1);
+                compiler.patch(loop, node.compile(compiler, loop), next);
+                entry = loop;
+            }
+            else
+            {
+                entry = next;
+                for (int i = min; i < max; ++i)
+                    entry = compiler.state(SPLIT, 0, node.compile(compiler, entry), next);
+            }
+            for (int i = 0; i < min; ++i)
+                entry = node.compile(compiler, entry);
+            return entry;
+        }
+    }
+
+    /** A set of characters, as sorted, disjoint inclusive ranges. */
+    private static final class CharSet
+    {
+        private final char[] ranges;
+        private final boolean negated;
+
+        CharSet(List<char[]> ranges, boolean negated)
+        {
+            this.ranges = new char[2 * ranges.size()];
+            for (int i = 0; i < ranges.size(); ++i)
+            {
+                this.ranges[2 * i] = ranges.get(i)[0];
+                this.ranges[2 * i + 1] = ranges.get(i)[1];
+            }
+            this.negated = negated;
+        }
+
+        boolean contains(char c)
+        {
+            boolean found = false;
+            for (int i = 0; i < ranges.length && !found; i += 2)
+                found = ranges[i] <= c && c <= ranges[i + 1];
+            return found != negated;
+        }
+    }
+
+    /** A recursive descent parser for the supported syntax. */
+    private static final class Parser
+    {
+        private final String regex;
+        private int position;
+
+        Parser(String regex)
+        {
+            this.regex = regex;
+        }
+
+        Node parse()
+        {
+            // Pattern.matches() anchors at both ends anyway
+            if (regex.startsWith("^"))
+                position = 1;
+            int end = regex.length();
+            Node node = alternation();
+            if (position < end && regex.charAt(position) == '$' && position == end - 1)
+                ++position;
+            if (position < end)
+                throw error("unexpected '" + regex.charAt(position) + "'");
+            return node;
+        }
+
+        private Node alternation()
+        {
+            List<Node> nodes = new ArrayList<Node>();
+            nodes.add(concatenation());
+            while (peek() == '|')
+            {
+                ++position;
+                nodes.add(concatenation());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Alternation(nodes);
+        }
+
+        private Node concatenation()
+        {
+            List<Node> nodes = new ArrayList<Node>();
+            while (position < regex.length())
+            {
+                char c = regex.charAt(position);
+                if (c == '|' || c == ')')
+                    break;
+                if (c == '$' && position == regex.length() - 1)
+                    break;
+                nodes.add(repetition(atom()));
+            }
+            if (nodes.isEmpty())
+                return new Empty();
+            return nodes.size() == 1 ? nodes.get(0) : new Concatenation(nodes);
+        }
+
+        private Node repetition(Node node)
+        {
+            while (position < regex.length())
+            {
+                char c = regex.charAt(position);
+                int min;
+                int max;
+                if (c == '*')
+                {
+                    min = 0;
+                    max = -1;
+                    ++position;
+                }
+                else if (c == '+')
+                {
+                    min = 1;
+                    max = -1;
+                    ++position;
+                }
+                else if (c == '?')
+                {
+                    min = 0;
+                    max = 1;
+                    ++position;
+                }
+                else if (c == '{')
+                {
+                    ++position;
+                    min = number();
+                    max = min;
+                    if (peek() == ',')
+                    {
+                        ++position;
+                        max = peek() == '}' ? -1 : number();
+                    }
+                    expect('}');
+                    if (max >= 0 && max < min)
+                        throw error("bad repetition bounds");
+                }
+                else
+                {
+                    return node;
+                }
+                if (peek() == '?')
+                    ++position;
+                else if (peek() == '+')
+                    throw error("possessive quantifiers are not supported");
+                node = new Repetition(node, min, max);
+            }
+            return node;
+        }
+
+        private Node atom()
+        {
+            char c = regex.charAt(position++);
+            switch (c)
+            {
+                case '(':
+                    if (peek() == '?')
+                    {
+                        if (position + 1 < regex.length() && regex.charAt(position + 1) == ':')
+                            position += 2;
+                        else
+                            throw error("only (?:...) groups are supported");
+                    }
+                    Node node = alternation();
+                    expect(')');
+                    return node;
+                case '[':
+                    return new Atom(SET, 0, charClass());
+                case '.':
+                    return new Atom(ANY, 0, null);
+                case '\\':
+                    return escape();
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw error("nothing to repeat");
+                case '^':
+                case '$':
+                    throw error("anchors are only supported at the ends");
+                default:
+                    return new Atom(CHAR, c, null);
+            }
+        }
+
+        private Node escape()
+        {
+            if (position >= regex.length())
+                throw error("trailing backslash");
+            char c = regex.charAt(position++);
+            List<char[]> ranges = new ArrayList<char[]>();
+            if (addShorthand(c, ranges))
+                return new Atom(SET, 0, new CharSet(ranges, Character.isUpperCase(c)));
+            if (Character.isLetterOrDigit(c))
+                throw error("\\" + c + " is not supported");
+            return new Atom(CHAR, c, null);
+        }
+
+        private CharSet charClass()
+        {
+            boolean negated = peek() == '^';
+            if (negated)
+                ++position;
+            List<char[]> ranges = new ArrayList<char[]>();
+            boolean first = true;
+            while (true)
+            {
+                if (position >= regex.length())
+                    throw error("unclosed character class");
+                char c = regex.charAt(position++);
+                if (c == ']' && !first)
+                    break;
+                first = false;
+                if (c == '[' || (c == '&' && peek() == '&'))
+                    throw error("nested character classes are not supported");
+                if (c == '\\')
+                {
+                    if (position >= regex.length())
+                        throw error("trailing backslash");
+                    c = regex.charAt(position++);
+                    if (Character.isLowerCase(c) && addShorthand(c, ranges))
+                        continue;
+                    if (Character.isLetterOrDigit(c))
+                        throw error("\\" + c + " is not supported in a character class");
+                }
+                char last = c;
+                if (peek() == '-' && position + 1 < regex.length() && regex.charAt(position + 1) != ']')
+                {
+                    ++position;
+                    last = regex.charAt(position++);
+                    if (last == '\\')
+                    {
+                        if (position >= regex.length())
+                            throw error("trailing backslash");
+                        last = regex.charAt(position++);
+                        if (Character.isLetterOrDigit(last))
+                            throw error("\\" + last + " is not supported in a range");
+                    }
+                    if (last < c)
+                        throw error("bad character range");
+                }
+                ranges.add(new char[] {c, last});
+            }
+            return new CharSet(ranges, negated);
+        }
+
+        /** Adds the ranges of \d, \w or \s (or their upper case negations) to <code>ranges</code>. */
+        private static boolean addShorthand(char c, List<char[]> ranges)
+        {
+            switch (Character.toLowerCase(c))
+            {
+                case 'd':
+                    ranges.add(new char[] {'0', '9'});
+                    return true;
+                case 'w':
+                    ranges.add(new char[] {'a', 'z'});
+                    ranges.add(new char[] {'A', 'Z'});
+                    ranges.add(new char[] {'0', '9'});
+                    ranges.add(new char[] {'_', '_'});
+                    return true;
+                case 's':
+                    ranges.add(new char[] {'\t', '\r'});
+                    ranges.add(new char[] {' ', ' '});
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private int number()
+        {
+            int from = position;
+            while (position < regex.length() && Character.isDigit(regex.charAt(position)))
+                ++position;
+            if (from == position || position - from > 4)
+                throw error("bad repetition count");
+            return Integer.parseInt(regex.substring(from, position));
+        }
+
+        private void expect(char c)
+        {
+            if (peek() != c)
+                throw error("expected '" + c + "'");
+            ++position;
+        }
+
+        private int peek()
+        {
+            return position < regex.length() ? regex.charAt(position) : -1;
+        }
+
+        private IllegalArgumentException error(String message)
+        {
+            return new IllegalArgumentException(message + " at index " + position + " in " + regex);
+        }
+    }
+}
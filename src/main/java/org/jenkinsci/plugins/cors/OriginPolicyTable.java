@@ -0,0 +1,111 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Maps origins to the policies configured for them, so that each
+ * partner origin can get its own methods, headers, credentials and
+ * preflight max age.</p>
+ *
+ * <p>An origin listed exactly is found with one hash lookup, however many
+ * origins the table holds. Origins that only match a wildcard or pattern
+ * entry are tried against those entries in configuration order, and the
+ * outcome is cached per raw Origin header in a {@link BoundedCache}, so
+ * that a request costs a hash lookup once its origin has been seen.
+ * Origins are compared in the form of {@link OriginCanonicalizer}, so an
+ * origin sent in another spelling is parsed once and then cached too.
+ * An origin listed exactly gets that entry even if the pattern of an
+ * earlier entry matches it too; otherwise the first entry listing or
+ * matching it wins.</p>
+ *
+ * <p>A table is filled with {@link #put} while it is being built and must
+ * not be modified once it has been published to other threads.</p>
+ */
+final class OriginPolicyTable
+{
+    /** A table without entries, which resolves every origin to the fallback policy. */
+    static final OriginPolicyTable EMPTY = new OriginPolicyTable(0);
+
+    private final Map<String,CORSPolicy> exact = new HashMap<String,CORSPolicy>();
+    private final List<CORSPolicy> patterns = new ArrayList<CORSPolicy>();
+    /** Resolved policies of origins that are not listed exactly as sent; the fallback policy is cached as itself. */
+    private final BoundedCache<String,CORSPolicy> resolved;
+    private int size;
+
+    /**
+     * @param cacheSize the maximum number of resolved origins to cache
+     */
+    OriginPolicyTable(int cacheSize)
+    {
+        this.resolved = new BoundedCache<String,CORSPolicy>(cacheSize);
+    }
+
+    /**
+     * Adds a policy for the origins it allows.
+     */
+    void put(CORSPolicy policy)
+    {
+        boolean pattern = policy.anyOriginAllowed;
+        for (String origin : policy.allowedOrigins)
+        {
+            if (origin.contains("*"))
+                pattern = true;
+            else
+            {
+                origin = OriginCanonicalizer.canonicalize(origin);
+                if (!exact.containsKey(origin))
+                    exact.put(origin, policy);
+            }
+        }
+        if (pattern)
+            patterns.add(policy);
+        ++size;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /** @return the number of policies in the table */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param origin   the raw Origin header
+     * @param fallback the policy of origins the table does not list
+     * @return the policy configured for <code>origin</code>, or
+     *         <code>fallback</code>
+     */
+    CORSPolicy resolve(String origin, CORSPolicy fallback)
+    {
+        CORSPolicy policy = exact.get(origin);
+        if (policy != null)
+            return policy;
+        policy = resolved.get(origin);
+        if (policy != null)
+            return policy;
+        policy = exact.get(OriginCanonicalizer.canonicalize(origin));
+        if (policy != null)
+        {
+            resolved.put(origin, policy);
+            return policy;
+        }
+        policy = fallback;
+        for (CORSPolicy candidate : patterns)
+        {
+            if (candidate.anyOriginAllowed || candidate.originMatcher.matches(origin))
+            {
+                policy = candidate;
+                break;
+            }
+        }
+        resolved.put(origin, policy);
+        return policy;
+    }
+}
@@ -0,0 +1,120 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * <p>An immutable set of exact origins, packed for large allowlists.</p>
+ *
+ * <p>The origins are sorted and stored back to back, one byte per
+ * character, in a single array, with a second array holding where each
+ * one starts. This takes a little over one byte per character, instead
+ * of the forty-odd bytes of overhead of a {@link String} in a hash set,
+ * and a lookup is a binary search that compares the origin against the
+ * bytes in place, so it allocates nothing and stays fast at a hundred
+ * thousand entries.</p>
+ *
+ * <p>Serialized origins are ASCII. Entries with other characters can
+ * never equal a request's Origin header, so they are left out.</p>
+ */
+final class PackedOriginSet
+{
+    static final PackedOriginSet EMPTY = new PackedOriginSet(new byte[0], new int[] {0});
+
+    private final byte[] chars;
+    /** offsets[i] is where the i-th origin starts in {@link #chars}; the last entry is chars.length. */
+    private final int[] offsets;
+
+    private PackedOriginSet(byte[] chars, int[] offsets)
+    {
+        this.chars = chars;
+        this.offsets = offsets;
+    }
+
+    static PackedOriginSet of(Collection<String> origins)
+    {
+        String[] sorted = new String[origins.size()];
+        int count = 0;
+        int length = 0;
+        for (String origin : origins)
+        {
+            if (isAscii(origin))
+            {
+                sorted[count++] = origin;
+                length += origin.length();
+            }
+        }
+        Arrays.sort(sorted, 0, count);
+
+        byte[] chars = new byte[length];
+        int[] offsets = new int[count + 1];
+        int size = 0;
+        int position = 0;
+        for (int i = 0; i < count; ++i)
+        {
+            if (i > 0 && sorted[i].equals(sorted[i - 1]))
+                continue;
+            offsets[size++] = position;
+            for (int c = 0; c < sorted[i].length(); ++c)
+                chars[position++] = (byte)sorted[i].charAt(c);
+        }
+        offsets[size] = position;
+        if (size < count)
+            return new PackedOriginSet(Arrays.copyOf(chars, position), Arrays.copyOf(offsets, size + 1));
+        return new PackedOriginSet(chars, offsets);
+    }
+
+    int size()
+    {
+        return offsets.length - 1;
+    }
+
+    boolean contains(String origin)
+    {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(middle, origin);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    /** @return whether <code>other</code> holds exactly the same origins */
+    boolean sameAs(PackedOriginSet other)
+    {
+        return Arrays.equals(offsets, other.offsets) && Arrays.equals(chars, other.chars);
+    }
+
+    /** Compares the index-th origin to <code>origin</code>, in the order of {@link String#compareTo}. */
+    private int compare(int index, String origin)
+    {
+        int start = offsets[index];
+        int length = offsets[index + 1] - start;
+        int common = Math.min(length, origin.length());
+        for (int i = 0; i < common; ++i)
+        {
+            int difference = chars[start + i] - origin.charAt(i);
+            if (difference != 0)
+                return difference;
+        }
+        return length - origin.length();
+    }
+
+    private static boolean isAscii(String value)
+    {
+        for (int i = 0; i < value.length(); ++i)
+        {
+            if (value.charAt(i) > 0x7F)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.Map;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A CORS policy bound to a URL path prefix, as configured on the
+ * {@link CORSPlugin} config page. Blank fields fall back to the global
+ * settings.
+ */
+public class PathPolicy
+{
+    private final String  path;
+    private final String  allowedOrigins;
+    private final String  allowedMethods;
+    private final String  allowedHeaders;
+    private final String  preflightMaxAge;
+    private final boolean allowCredentials;
+    private final String  exposedHeaders;
+
+    @DataBoundConstructor
+    public PathPolicy(final String path,
+                      final String allowedOrigins,
+                      final String allowedMethods,
+                      final String allowedHeaders,
+                      final String preflightMaxAge,
+                      final boolean allowCredentials,
+                      final String exposedHeaders)
+    {
+        this.path             = path;
+        this.allowedOrigins   = allowedOrigins;
+        this.allowedMethods   = allowedMethods;
+        this.allowedHeaders   = allowedHeaders;
+        this.preflightMaxAge  = preflightMaxAge;
+        this.allowCredentials = allowCredentials;
+        this.exposedHeaders   = exposedHeaders;
+    }
+
+    public String getPath() { return this.path; }
+    public String getAllowedOrigins() { return this.allowedOrigins; }
+    public String getAllowedMethods() { return this.allowedMethods; }
+    public String getAllowedHeaders() { return this.allowedHeaders; }
+    public String getPreflightMaxAge() { return this.preflightMaxAge; }
+    public boolean getAllowCredentials() { return this.allowCredentials; }
+    public String getExposedHeaders() { return this.exposedHeaders; }
+
+    /**
+     * Adds the filter parameters of this policy, as the
+     * <code>index</code>-th path policy, to <code>params</code>.
+     */
+    void putParams(final Map<String,String> params, final int index)
+    {
+        final String prefix = CrossOriginFilter.PATH_POLICY_PARAM_PREFIX + index + ".";
+        params.put(prefix + CrossOriginFilter.PATH_PARAM              , path );
+        params.put(prefix + CrossOriginFilter.ALLOWED_ORIGINS_PARAM   , allowedOrigins );
+        params.put(prefix + CrossOriginFilter.ALLOWED_METHODS_PARAM   , allowedMethods );
+        params.put(prefix + CrossOriginFilter.ALLOWED_HEADERS_PARAM   , allowedHeaders );
+        params.put(prefix + CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM , preflightMaxAge );
+        params.put(prefix + CrossOriginFilter.ALLOW_CREDENTIALS_PARAM , (allowCredentials ? "true" : "false") );
+        params.put(prefix + CrossOriginFilter.EXPOSED_HEADERS_PARAM   , exposedHeaders );
+    }
+
+    public String toString() {
+        return CrossOriginFilter.PATH_PARAM + "=" + path + ", " +
+            CrossOriginFilter.ALLOWED_ORIGINS_PARAM   + "=" + allowedOrigins   + ", " +
+            CrossOriginFilter.ALLOWED_METHODS_PARAM   + "=" + allowedMethods   + ", " +
+            CrossOriginFilter.ALLOWED_HEADERS_PARAM   + "=" + allowedHeaders   + ", " +
+            CrossOriginFilter.PREFLIGHT_MAX_AGE_PARAM + "=" + preflightMaxAge  + ", " +
+            CrossOriginFilter.ALLOW_CREDENTIALS_PARAM + "=" + allowCredentials + ", " +
+            CrossOriginFilter.EXPOSED_HEADERS_PARAM   + "=" + exposedHeaders;
+    }
+}
@@ -0,0 +1,151 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Maps URL path prefixes to values, and finds the most specific
+ * prefix of a request path in time proportional to the length of the
+ * path, however many prefixes there are.</p>
+ *
+ * <p>A prefix is matched character by character, except that "*" matches
+ * one whole, non-empty path segment: <code>/job/&#42;/build</code> matches
+ * <code>/job/foo/build</code> and <code>/job/foo/buildWithParameters</code>
+ * but not <code>/job/foo/bar/build</code>. When several prefixes match, the
+ * one covering the longest part of the path wins, and at equal length a
+ * literal character beats a "*".</p>
+ *
+ * <p>A trie is filled with {@link #put} while it is being built and must
+ * not be modified once it has been published to other threads. Lookups
+ * allocate nothing.</p>
+ */
+final class PathTrie<V>
+{
+    /** All nodes, indexed by {@link Node#id}, so a match can be reported as a primitive. */
+    private final List<Node<V>> nodes = new ArrayList<Node<V>>();
+    private final Node<V> root = newNode();
+    private int size;
+
+    private Node<V> newNode()
+    {
+        Node<V> node = new Node<V>(nodes.size());
+        nodes.add(node);
+        return node;
+    }
+
+    void put(String prefix, V value)
+    {
+        Node<V> node = root;
+        for (int i = 0; i < prefix.length(); ++i)
+        {
+            char c = prefix.charAt(i);
+            if (c == '*')
+            {
+                if (node.wildcard == null)
+                    node.wildcard = newNode();
+                node = node.wildcard;
+            }
+            else
+            {
+                Node<V> child = node.child(c);
+                if (child == null)
+                {
+                    child = newNode();
+                    node.addChild(c, child);
+                }
+                node = child;
+            }
+        }
+        if (node.value == null)
+            ++size;
+        node.value = value;
+    }
+
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * @return the value of the most specific prefix of
+     *         <code>path.substring(from)</code>, or null if none matches
+     */
+    V lookup(String path, int from)
+    {
+        long match = longest(root, path, from);
+        return match < 0 ? null : nodes.get((int)match).value;
+    }
+
+    /*
+     * Returns the longest match below node as (end of match in path) << 32
+     * | (node id), or -1 if there is none. Recursion only follows nodes that
+     * exist in the trie, so its depth is bounded by the longest configured
+     * prefix, not by the request path.
+     */
+    private static <V> long longest(Node<V> node, String path, int i)
+    {
+        long best = node.value == null ? -1L : ((long)i << 32) | node.id;
+        if (node.wildcard != null)
+        {
+            int end = i;
+            while (end < path.length() && path.charAt(end) != '/')
+                ++end;
+            if (end > i)
+                best = Math.max(best, longest(node.wildcard, path, end));
+        }
+        if (i < path.length())
+        {
+            Node<V> child = node.child(path.charAt(i));
+            if (child != null)
+            {
+                long match = longest(child, path, i + 1);
+                // at equal length, prefer the literal match
+                if (match >= 0 && (best < 0 || (match >>> 32) >= (best >>> 32)))
+                    best = match;
+            }
+        }
+        return best;
+    }
+
+    private static final class Node<V>
+    {
+        private final int id;
+        private char[] keys = new char[0];
+        private Node<V>[] children = newArray(0);
+        private Node<V> wildcard;
+        private V value;
+
+        Node(int id)
+        {
+            this.id = id;
+        }
+
+        Node<V> child(char c)
+        {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        void addChild(char c, Node<V> child)
+        {
+            int insertion = -Arrays.binarySearch(keys, c) - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node<V>[] newChildren = newArray(children.length + 1);
+            System.arraycopy(keys, 0, newKeys, 0, insertion);
+            System.arraycopy(children, 0, newChildren, 0, insertion);
+            System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+            System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+            newKeys[insertion] = c;
+            newChildren[insertion] = child;
+            keys = newKeys;
+            children = newChildren;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] newArray(int length)
+        {
+            return (Node<V>[])new Node[length];
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>The trace of one request shape through the policy of a
+ * {@link CrossOriginFilter}, as built by
+ * {@link CrossOriginFilter#explain}: each stage of the decision with what
+ * it found and the nanoseconds it took, the decision, and the headers the
+ * filter would emit.</p>
+ *
+ * <p>Stages are timed one at a time, on a single run, so the timings show
+ * which stage is slow rather than what a warmed-up request costs.</p>
+ */
+final class PolicyExplanation
+{
+    private final List<String> notes = new ArrayList<String>();
+    private final List<String[]> stages = new ArrayList<String[]>();
+    private final List<String> headers = new ArrayList<String>();
+    private CORSDecision decision;
+    private String outcome;
+
+    void note(String note)
+    {
+        notes.add(note);
+    }
+
+    /**
+     * @param nanos  the time the stage took
+     * @param result what the stage found
+     */
+    void stage(String name, long nanos, String result)
+    {
+        stages.add(new String[] { name, String.valueOf(nanos), result });
+    }
+
+    void header(String name, String value)
+    {
+        headers.add(name + ": " + value);
+    }
+
+    /**
+     * @param outcome what becomes of the request besides the headers
+     */
+    void decide(CORSDecision decision, String outcome)
+    {
+        this.decision = decision;
+        this.outcome = outcome;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (String note : notes)
+            builder.append(note).append('\n');
+        builder.append('\n').append(String.format("%-16s %10s  %s%n", "stage", "nanos", "result"));
+        for (String[] stage : stages)
+            builder.append(String.format("%-16s %10s  %s%n", stage[0], stage[1], stage[2]));
+        builder.append('\n').append("decision: ").append(decision == null ? "none" : decision.label).append('\n');
+        builder.append("outcome: ").append(outcome).append('\n');
+        builder.append('\n').append("response headers:").append('\n');
+        if (headers.isEmpty())
+            builder.append("  (none)").append('\n');
+        for (String header : headers)
+            builder.append("  ").append(header).append('\n');
+        return builder.toString();
+    }
+}
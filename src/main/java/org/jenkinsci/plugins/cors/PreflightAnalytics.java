@@ -0,0 +1,230 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Tracks how often each origin preflights the same (method, headers)
+ * shape again, and works out the Access-Control-Max-Age to grant origins
+ * whose preflights have been allowed for a while.</p>
+ *
+ * <p>A re-preflight is a preflight of a shape the origin has sent before;
+ * it is early if it comes while the max age granted to the previous one
+ * has not run out. Browsers clamp the max age (Chrome to two hours,
+ * Firefox to a day), and drop their preflight cache for other reasons
+ * too, so an origin with many early re-preflights is one whose clients
+ * ignore the max age granted, while many clients behind one origin show
+ * up as re-preflights that are not early.</p>
+ *
+ * <p>An origin is stable once all its preflights under a policy have been
+ * allowed for a whole base max age. With an adaptive cap above the base
+ * max age, a stable origin is granted twice the base max age after one
+ * base max age, four times after two, and so on up to the cap. A
+ * rejected preflight or a reconfiguration starts the count again, so a
+ * client is not told to hold on to permissions that are in flux. The
+ * stability of each origin is kept in the
+ * {@link CORSPolicy#preflightStability} of the policy deciding its
+ * preflights, so an origin preflighting under a path, item or origin
+ * policy as well as the global one is tracked, and granted a max age,
+ * separately under each.</p>
+ *
+ * <p>Memory is bounded: at most {@link #TRACKED_ORIGINS} origins and
+ * {@link #TRACKED_SHAPES} shapes are tracked, each in a
+ * {@link BoundedCache}. An origin that has not preflighted since the
+ * clock hand last passed it makes room for a new one, so a burst of
+ * junk origins cannot keep out the origins that keep preflighting. An
+ * evicted origin that comes back starts over, as after a
+ * reconfiguration. The stability kept in a policy is bounded by the size
+ * of its origin cache, and only kept when it adapts the max age. The analytics belong to the filter rather than to
+ * its policy, so they keep counting across reconfigurations.</p>
+ */
+final class PreflightAnalytics
+{
+    static final int TRACKED_ORIGINS = Integer.getInteger(PreflightAnalytics.class.getName() + ".trackedOrigins", 1000);
+    static final int TRACKED_SHAPES = Integer.getInteger(PreflightAnalytics.class.getName() + ".trackedShapes", 4096);
+    /** The number of origins in {@link #getOffenders()}. */
+    static final int TOP_OFFENDERS = Integer.getInteger(PreflightAnalytics.class.getName() + ".topOffenders", 20);
+
+    private static final long NOT_STABLE = Long.MIN_VALUE;
+
+    private final BoundedCache<String,OriginStats> origins = new BoundedCache<String,OriginStats>(TRACKED_ORIGINS);
+    private final BoundedCache<PreflightResponse.Key,Shape> shapes = new BoundedCache<PreflightResponse.Key,Shape>(TRACKED_SHAPES);
+
+    /**
+     * Records a preflight and works out the max age to grant it.
+     *
+     * @param key     the shape of the preflight
+     * @param origin  the raw Origin header
+     * @param policy  the policy that decided it
+     * @param allowed whether it was allowed
+     * @param now     the time of the preflight, from {@link System#nanoTime()}
+     * @return the max age to grant instead of the base max age of
+     *         <code>policy</code>, or null if the base max age stands
+     */
+    Grant record(PreflightResponse.Key key, String origin, CORSPolicy policy, boolean allowed, long now)
+    {
+        OriginStats stats = statsFor(origin);
+        stats.preflights.increment();
+        Grant grant = policy.adaptsMaxAge() ? adapt(policy, origin, allowed, now) : null;
+        int maxAge = !allowed ? 0 : grant != null ? grant.maxAge : policy.preflightMaxAge;
+        if (allowed)
+            stats.maxAge = maxAge;
+
+        long maxAgeNanos = TimeUnit.SECONDS.toNanos(maxAge);
+        Shape shape = shapes.get(key);
+        if (shape == null)
+        {
+            shapes.put(key, new Shape(now, maxAgeNanos));
+        }
+        else
+        {
+            stats.rePreflights.increment();
+            if (now - shape.lastSeen < shape.maxAgeNanos)
+                stats.earlyRePreflights.increment();
+            shape.lastSeen = now;
+            shape.maxAgeNanos = maxAgeNanos;
+        }
+        return grant;
+    }
+
+    /**
+     * Tracks the stability of <code>origin</code> under <code>policy</code>.
+     *
+     * @return the max age granted, or null if it is the base max age
+     */
+    private static Grant adapt(CORSPolicy policy, String origin, boolean allowed, long now)
+    {
+        Stability stability = policy.preflightStability.get(origin);
+        if (stability == null)
+        {
+            stability = new Stability();
+            Stability existing = policy.preflightStability.putIfAbsent(origin, stability);
+            if (existing != null)
+                stability = existing;
+        }
+        if (!allowed)
+        {
+            stability.stableSince = NOT_STABLE;
+            return null;
+        }
+        long stableSince = stability.stableSince;
+        if (stableSince == NOT_STABLE)
+        {
+            stableSince = now;
+            stability.stableSince = stableSince;
+        }
+        int base = policy.preflightMaxAge;
+        int maxAge = base;
+        long periods = (now - stableSince) / TimeUnit.SECONDS.toNanos(base);
+        for (long p = 0; p < periods && maxAge < policy.adaptiveMaxAgeCap; ++p)
+            maxAge = (int)Math.min((long)maxAge * 2, policy.adaptiveMaxAgeCap);
+        if (maxAge == base)
+            return null;
+        Grant grant = stability.grant;
+        if (grant == null || grant.maxAge != maxAge)
+        {
+            grant = new Grant(maxAge);
+            stability.grant = grant;
+        }
+        return grant;
+    }
+
+    private OriginStats statsFor(String origin)
+    {
+        OriginStats stats = origins.get(origin);
+        if (stats != null)
+            return stats;
+        stats = new OriginStats();
+        OriginStats existing = origins.putIfAbsent(origin, stats);
+        return existing != null ? existing : stats;
+    }
+
+    /**
+     * @return the {@link #TOP_OFFENDERS} origins with the most early
+     *         re-preflights, then the most re-preflights, worst first
+     */
+    List<PreflightOffender> getOffenders()
+    {
+        List<PreflightOffender> offenders = new ArrayList<PreflightOffender>();
+        for (Map.Entry<String,OriginStats> entry : origins.snapshot().entrySet())
+        {
+            OriginStats stats = entry.getValue();
+            long rePreflights = stats.rePreflights.sum();
+            if (rePreflights > 0)
+                offenders.add(new PreflightOffender(entry.getKey(), stats.preflights.sum(), rePreflights, stats.earlyRePreflights.sum(), stats.maxAge));
+        }
+        Collections.sort(offenders, new Comparator<PreflightOffender>()
+        {
+            public int compare(PreflightOffender a, PreflightOffender b)
+            {
+                if (a.getEarlyRePreflights() != b.getEarlyRePreflights())
+                    return a.getEarlyRePreflights() > b.getEarlyRePreflights() ? -1 : 1;
+                if (a.getRePreflights() != b.getRePreflights())
+                    return a.getRePreflights() > b.getRePreflights() ? -1 : 1;
+                return 0;
+            }
+        });
+        return offenders.size() > TOP_OFFENDERS ? new ArrayList<PreflightOffender>(offenders.subList(0, TOP_OFFENDERS)) : offenders;
+    }
+
+    /** The preflight counters of one origin. */
+    static final class OriginStats
+    {
+        private static final int STRIPES = 4;
+
+        private final StripedCounter preflights = new StripedCounter(STRIPES);
+        private final StripedCounter rePreflights = new StripedCounter(STRIPES);
+        private final StripedCounter earlyRePreflights = new StripedCounter(STRIPES);
+        /** The max age granted to the last allowed preflight, in seconds, for {@link #getOffenders()}. */
+        private volatile int maxAge;
+    }
+
+    /**
+     * How long the preflights of one origin under one policy have been
+     * allowed. The fields are updated without locking; concurrent
+     * preflights of the same origin may lose an update, which only delays
+     * adaptation by a preflight.
+     */
+    static final class Stability
+    {
+        private volatile long stableSince = NOT_STABLE;
+        /** The last max age granted other than the base max age, kept so that it is only built once per change. */
+        private volatile Grant grant;
+    }
+
+    /**
+     * A max age granted to a preflight, with the values of the
+     * Access-Control-Max-Age and Cache-Control headers that carry it.
+     */
+    static final class Grant
+    {
+        /** In seconds. */
+        final int maxAge;
+        final String maxAgeValue;
+        final String cacheControlValue;
+
+        Grant(int maxAge)
+        {
+            this.maxAge = maxAge;
+            this.maxAgeValue = String.valueOf(maxAge);
+            this.cacheControlValue = "public, max-age=" + maxAgeValue;
+        }
+    }
+
+    /** The last preflight of one shape. */
+    private static final class Shape
+    {
+        volatile long lastSeen;
+        volatile long maxAgeNanos;
+
+        Shape(long lastSeen, long maxAgeNanos)
+        {
+            this.lastSeen = lastSeen;
+            this.maxAgeNanos = maxAgeNanos;
+        }
+    }
+}
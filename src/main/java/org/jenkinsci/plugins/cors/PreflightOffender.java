@@ -0,0 +1,40 @@
+package org.jenkinsci.plugins.cors;
+
+/**
+ * An origin that preflights the same request shapes again and again, as
+ * listed on the {@link CORSPlugin} config page.
+ */
+public final class PreflightOffender
+{
+    /** Longer origins are cut, as they come straight from a request header. */
+    private static final int MAX_ORIGIN_LENGTH = 256;
+
+    private final String origin;
+    private final long preflights;
+    private final long rePreflights;
+    private final long earlyRePreflights;
+    private final int maxAge;
+
+    PreflightOffender(String origin, long preflights, long rePreflights, long earlyRePreflights, int maxAge)
+    {
+        this.origin = origin.length() <= MAX_ORIGIN_LENGTH ? origin : origin.substring(0, MAX_ORIGIN_LENGTH) + "...";
+        this.preflights = preflights;
+        this.rePreflights = rePreflights;
+        this.earlyRePreflights = earlyRePreflights;
+        this.maxAge = maxAge;
+    }
+
+    public String getOrigin() { return this.origin; }
+    /** @return the preflights of this origin since the filter was created */
+    public long getPreflights() { return this.preflights; }
+    /** @return the preflights of a shape this origin had preflighted before */
+    public long getRePreflights() { return this.rePreflights; }
+    /** @return the re-preflights that came before the max age granted to the previous one ran out */
+    public long getEarlyRePreflights() { return this.earlyRePreflights; }
+    /** @return the max age, in seconds, granted to the last allowed preflight of this origin */
+    public int getMaxAge() { return this.maxAge; }
+
+    public String toString() {
+        return "origin=" + origin + ", preflights=" + preflights + ", rePreflights=" + rePreflights + ", early=" + earlyRePreflights + ", maxAge=" + maxAge;
+    }
+}
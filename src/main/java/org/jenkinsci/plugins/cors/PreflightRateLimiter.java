@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Limits the rate of preflight requests from each origin with a token
+ * bucket per origin.</p>
+ *
+ * <p>A bucket is a single {@link AtomicLong} holding the theoretical
+ * arrival time of the next request (the generic cell rate algorithm,
+ * which admits exactly what a token bucket of the same rate and burst
+ * does). Taking a token is one compare-and-set on the origin's own
+ * bucket, so origins never contend with each other and no lock is
+ * taken.</p>
+ *
+ * <p>Buckets live in a {@link BoundedCache}, which holds at most
+ * {@link #TRACKED_ORIGINS} of them and evicts those that have not been
+ * used since the clock hand last passed, so idle origins do not keep
+ * their buckets. An evicted origin starts again with a full bucket.</p>
+ */
+final class PreflightRateLimiter
+{
+    static final int TRACKED_ORIGINS = Integer.getInteger(PreflightRateLimiter.class.getName() + ".trackedOrigins", 4096);
+
+    /** A limiter that admits every preflight. */
+    static final PreflightRateLimiter UNLIMITED = new PreflightRateLimiter(0, 0);
+
+    /** Nanoseconds between two tokens, or 0 if there is no limit. */
+    private final long interval;
+    /** How far ahead of now the next arrival time may run before requests are refused. */
+    private final long tolerance;
+    private final BoundedCache<String,AtomicLong> buckets;
+
+    /**
+     * @param rate  preflights per second allowed from each origin, or 0 or
+     *              less for no limit
+     * @param burst preflights allowed in a row from an origin with a full
+     *              bucket, at least 1
+     */
+    PreflightRateLimiter(double rate, int burst)
+    {
+        this.interval = rate > 0 ? Math.max(1L, (long)(TimeUnit.SECONDS.toNanos(1) / rate)) : 0L;
+        this.tolerance = interval * (Math.max(burst, 1) - 1);
+        this.buckets = new BoundedCache<String,AtomicLong>(interval > 0 ? TRACKED_ORIGINS : 0);
+    }
+
+    /** @return whether this limiter ever refuses a preflight */
+    boolean isLimited()
+    {
+        return interval > 0;
+    }
+
+    /**
+     * Takes a token from the bucket of <code>origin</code>.
+     *
+     * @return 0 if a token was taken, or else the number of nanoseconds
+     *         until the next one is available
+     */
+    long acquire(String origin)
+    {
+        if (interval == 0)
+            return 0L;
+        AtomicLong bucket = bucketFor(origin);
+        long now = System.nanoTime();
+        while (true)
+        {
+            long arrival = bucket.get();
+            // an idle bucket refills to full, and no further
+            long next = arrival - now < 0 ? now : arrival;
+            long wait = next - now - tolerance;
+            if (wait > 0)
+                return wait;
+            if (bucket.compareAndSet(arrival, next + interval))
+                return 0L;
+        }
+    }
+
+    private AtomicLong bucketFor(String origin)
+    {
+        AtomicLong bucket = buckets.get(origin);
+        if (bucket != null)
+            return bucket;
+        bucket = new AtomicLong(System.nanoTime());
+        // another thread may have put its bucket first; use that one. A
+        // bucket left out of a full cache is simply a full one, which is
+        // what a new origin gets anyway
+        AtomicLong existing = buckets.putIfAbsent(origin, bucket);
+        return existing == null ? bucket : existing;
+    }
+}
@@ -0,0 +1,119 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>The response headers a {@link CrossOriginFilter} emits for one shape
+ * of preflight request, computed once and then replayed from the
+ * preflight cache of the {@link CORSPolicy}.</p>
+ *
+ * <p>A preflight that is not allowed maps to {@link #REJECTED_METHOD} or
+ * {@link #REJECTED_HEADERS}, which emit no header at all.</p>
+ */
+final class PreflightResponse
+{
+    static final PreflightResponse REJECTED_METHOD = new PreflightResponse(CORSDecision.PREFLIGHT_REJECTED_METHOD, new String[0], new String[0]);
+    static final PreflightResponse REJECTED_HEADERS = new PreflightResponse(CORSDecision.PREFLIGHT_REJECTED_HEADERS, new String[0], new String[0]);
+
+    final CORSDecision decision;
+    private final String[] names;
+    private final String[] values;
+
+    private PreflightResponse(CORSDecision decision, String[] names, String[] values)
+    {
+        this.decision = decision;
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Builds the headers of an allowed preflight from <code>origin</code>
+     * and the precomputed header values of <code>policy</code>.
+     */
+    static PreflightResponse allowed(CORSPolicy policy, String origin)
+    {
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        names.add(CrossOriginFilter.ACCESS_CONTROL_ALLOW_ORIGIN_HEADER);
+        values.add(origin);
+        if (policy.allowCredentials)
+        {
+            names.add(CrossOriginFilter.ACCESS_CONTROL_ALLOW_CREDENTIALS_HEADER);
+            values.add("true");
+        }
+        if (policy.preflightMaxAge > 0)
+        {
+            names.add(CrossOriginFilter.ACCESS_CONTROL_MAX_AGE_HEADER);
+            values.add(String.valueOf(policy.preflightMaxAge));
+            if (policy.preflightCacheControl)
+            {
+                names.add(CrossOriginFilter.CACHE_CONTROL_HEADER);
+                values.add("public, max-age=" + policy.preflightMaxAge);
+            }
+        }
+        names.add(CrossOriginFilter.ACCESS_CONTROL_ALLOW_METHODS_HEADER);
+        values.add(policy.allowedMethodsValue);
+        names.add(CrossOriginFilter.ACCESS_CONTROL_ALLOW_HEADERS_HEADER);
+        values.add(policy.allowedHeadersValue);
+        return new PreflightResponse(CORSDecision.PREFLIGHT_ALLOWED, names.toArray(new String[names.size()]), values.toArray(new String[values.size()]));
+    }
+
+    void apply(HttpServletResponse response)
+    {
+        for (int i = 0; i < names.length; ++i)
+            response.setHeader(names[i], values[i]);
+    }
+
+    void describeTo(PolicyExplanation explanation)
+    {
+        for (int i = 0; i < names.length; ++i)
+            explanation.header(names[i], values[i]);
+    }
+
+    /**
+     * The (Origin, Access-Control-Request-Method,
+     * Access-Control-Request-Headers) triple that determines the
+     * response to a preflight. Either header may be null.
+     */
+    static final class Key
+    {
+        private final String origin;
+        private final String method;
+        private final String headers;
+        private final int hash;
+
+        Key(String origin, String method, String headers)
+        {
+            this.origin = origin;
+            this.method = method;
+            this.headers = headers;
+            int h = origin.hashCode();
+            h = 31 * h + (method == null ? 0 : method.hashCode());
+            h = 31 * h + (headers == null ? 0 : headers.hashCode());
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key that = (Key)o;
+            return hash == that.hash
+                && origin.equals(that.origin)
+                && (method == null ? that.method == null : method.equals(that.method))
+                && (headers == null ? that.headers == null : headers.equals(that.headers));
+        }
+    }
+}
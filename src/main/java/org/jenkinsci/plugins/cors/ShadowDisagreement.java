@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.Date;
+
+/**
+ * A sampled request on which the shadow policy of a
+ * {@link CrossOriginFilter} would have decided differently from the
+ * active one, as listed on the {@link CORSPlugin} config page.
+ */
+public final class ShadowDisagreement
+{
+    /** Longer origins and paths are cut, so a hostile request cannot pin much memory in the buffer. */
+    private static final int MAX_VALUE_LENGTH = 256;
+
+    private final long time;
+    private final String origin;
+    private final String path;
+    private final CORSDecision activeDecision;
+    private final CORSDecision shadowDecision;
+
+    ShadowDisagreement(long time, String origin, String path, CORSDecision activeDecision, CORSDecision shadowDecision)
+    {
+        this.time = time;
+        this.origin = cut(origin);
+        this.path = cut(path);
+        this.activeDecision = activeDecision;
+        this.shadowDecision = shadowDecision;
+    }
+
+    private static String cut(String value)
+    {
+        return value == null || value.length() <= MAX_VALUE_LENGTH ? value : value.substring(0, MAX_VALUE_LENGTH) + "...";
+    }
+
+    public Date getTime() { return new Date(this.time); }
+    public String getOrigin() { return this.origin; }
+    public String getPath() { return this.path; }
+    public String getActiveVerdict() { return this.activeDecision.label; }
+    public String getShadowVerdict() { return this.shadowDecision.label; }
+
+    public String toString() {
+        return "origin=" + origin + ", path=" + path + ", active=" + activeDecision.label + ", shadow=" + shadowDecision.label;
+    }
+}
@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>A candidate policy evaluated next to the active one on a sample of
+ * live requests, recording the requests on which the two disagree.</p>
+ *
+ * <p>Sampling hashes the current {@link System#nanoTime()} with the id
+ * of the request thread and compares it with a threshold, so a request
+ * that is not sampled costs a few arithmetic instructions and neither
+ * allocates nor touches shared state. Only disagreements are stored, in
+ * a fixed ring of the last {@link #BUFFER_SIZE} of them: claiming a slot
+ * is one atomic increment and publishing the record one atomic store,
+ * so no lock is taken on the request path.</p>
+ *
+ * <p>Like the caches, the shadow policy and its disagreements are
+ * discarded along with the policy they belong to, so the buffer only
+ * ever compares one pair of configurations.</p>
+ */
+final class ShadowPolicy
+{
+    static final int BUFFER_SIZE = Integer.getInteger(ShadowPolicy.class.getName() + ".bufferSize", 100);
+
+    /** Sampling works on this many bits of the hash. */
+    private static final int SAMPLE_BITS = 24;
+
+    final CORSPolicy policy;
+    /** Requests whose hash falls below this are sampled. */
+    private final int threshold;
+    private final AtomicReferenceArray<ShadowDisagreement> disagreements = new AtomicReferenceArray<ShadowDisagreement>(Math.max(1, BUFFER_SIZE));
+    private final AtomicLong disagreementCount = new AtomicLong();
+    private final StripedCounter sampled = new StripedCounter();
+
+    /**
+     * @param policy     the policy to evaluate
+     * @param sampleRate the percentage of cross-origin requests to
+     *                   evaluate it on, between 0 and 100
+     */
+    ShadowPolicy(CORSPolicy policy, double sampleRate)
+    {
+        this.policy = policy;
+        double fraction = Math.max(0.0, Math.min(100.0, sampleRate)) / 100.0;
+        this.threshold = (int)Math.round(fraction * (1 << SAMPLE_BITS));
+    }
+
+    /** @return whether the current request should be evaluated against the shadow policy */
+    boolean sample()
+    {
+        long x = System.nanoTime() + Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+        x ^= x >>> 33;
+        return (int)(x & ((1 << SAMPLE_BITS) - 1)) < threshold;
+    }
+
+    /**
+     * Counts a sampled request and, if the two policies decided
+     * differently, records it.
+     */
+    void compare(String origin, String path, CORSDecision activeDecision, CORSDecision shadowDecision)
+    {
+        sampled.increment();
+        if (activeDecision == shadowDecision)
+            return;
+        long index = disagreementCount.getAndIncrement();
+        disagreements.set((int)(index % disagreements.length()),
+                          new ShadowDisagreement(System.currentTimeMillis(), origin, path, activeDecision, shadowDecision));
+    }
+
+    long getSampledCount()
+    {
+        return sampled.sum();
+    }
+
+    long getDisagreementCount()
+    {
+        return disagreementCount.get();
+    }
+
+    /** @return the buffered disagreements, most recent first */
+    List<ShadowDisagreement> getDisagreements()
+    {
+        int length = disagreements.length();
+        long newest = disagreementCount.get() - 1;
+        List<ShadowDisagreement> result = new ArrayList<ShadowDisagreement>(length);
+        for (long index = newest; index >= 0 && index > newest - length; --index)
+        {
+            // a slot claimed but not yet written still holds an older record, or null
+            ShadowDisagreement disagreement = disagreements.get((int)(index % length));
+            if (disagreement != null)
+                result.add(disagreement);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins.cors;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A counter that many threads can increment without contending on a
+ * single memory location.</p>
+ *
+ * <p>The count is spread over a power-of-two number of cells, each
+ * padded onto its own cache line, and a thread always adds to the cell
+ * its id hashes to. Reading the count sums the cells, so it is only
+ * exact while no thread is incrementing. This plays the role of
+ * <code>java.util.concurrent.atomic.LongAdder</code>, which is not
+ * available on the Java versions Jenkins supports.</p>
+ */
+final class StripedCounter
+{
+    /** Longs per cell: 128 bytes keeps neighbouring cells off each other's cache lines, even with adjacent-line prefetch. */
+    private static final int PADDING = 16;
+    private static final int DEFAULT_STRIPES = stripesFor(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    StripedCounter()
+    {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes number of cells, rounded up to a power of two
+     */
+    StripedCounter(int stripes)
+    {
+        int n = stripesFor(stripes);
+        this.cells = new AtomicLongArray(n * PADDING);
+        this.mask = n - 1;
+    }
+
+    void increment()
+    {
+        add(1L);
+    }
+
+    void add(long x)
+    {
+        cells.addAndGet(index() * PADDING, x);
+    }
+
+    long sum()
+    {
+        long sum = 0L;
+        for (int i = 0; i <= mask; ++i)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    private int index()
+    {
+        // thread ids are small and sequential; scramble them so that
+        // neighbouring threads land on different cells
+        long id = Thread.currentThread().getId();
+        int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int stripesFor(int n)
+    {
+        int stripes = 1;
+        while (stripes < n && stripes < 64)
+            stripes <<= 1;
+        return stripes;
+    }
+}
@@ -0,0 +1,122 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>The parts of a request that a {@link CrossOriginFilter} looks at,
+ * as stored in a trace file by {@link TraceRecorder}.</p>
+ *
+ * <p>A trace file starts with {@link #MAGIC} and a version byte, followed
+ * by the records. A record is a byte with one bit set per field present,
+ * then each present field in {@link DataOutputStream#writeUTF} form, in
+ * the order of the bits. The path is stored relative to the context
+ * path.</p>
+ */
+final class TraceRecord
+{
+    static final int MAGIC = 0x434F5253; // "CORS"
+    static final int VERSION = 1;
+    /** writeUTF takes at most 65535 bytes; longer values are cut, which leaves more than any real header needs. */
+    private static final int MAX_VALUE_LENGTH = 16 * 1024;
+
+    private static final int FIELDS = 7;
+
+    /** method, Origin, Access-Control-Request-Method, Access-Control-Request-Headers, path, Connection, Upgrade */
+    private final String[] fields;
+
+    private TraceRecord(String[] fields)
+    {
+        this.fields = fields;
+    }
+
+    static TraceRecord of(HttpServletRequest request)
+    {
+        String uri = request.getRequestURI();
+        int contextLength = request.getContextPath().length();
+        return new TraceRecord(new String[] {
+                request.getMethod(),
+                request.getHeader("Origin"),
+                request.getHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_METHOD_HEADER),
+                request.getHeader(CrossOriginFilter.ACCESS_CONTROL_REQUEST_HEADERS_HEADER),
+                uri == null || contextLength > uri.length() ? uri : uri.substring(contextLength),
+                request.getHeader("Connection"),
+                request.getHeader("Upgrade")});
+    }
+
+    String getMethod() { return fields[0]; }
+    String getOrigin() { return fields[1]; }
+    String getRequestMethod() { return fields[2]; }
+    String getRequestHeaders() { return fields[3]; }
+    /** @return the request path, relative to the context path */
+    String getPath() { return fields[4]; }
+    String getConnection() { return fields[5]; }
+    String getUpgrade() { return fields[6]; }
+
+    static void writeHeader(DataOutputStream out) throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException
+    {
+        int present = 0;
+        for (int i = 0; i < FIELDS; ++i)
+        {
+            if (fields[i] != null)
+                present |= 1 << i;
+        }
+        out.writeByte(present);
+        for (int i = 0; i < FIELDS; ++i)
+        {
+            String field = fields[i];
+            if (field != null)
+                out.writeUTF(field.length() > MAX_VALUE_LENGTH ? field.substring(0, MAX_VALUE_LENGTH) : field);
+        }
+    }
+
+    /**
+     * Checks the header of a trace file.
+     *
+     * @throws IOException if <code>in</code> is not a trace file this
+     *         class can read
+     */
+    static void readHeader(DataInputStream in) throws IOException
+    {
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a CORS trace file");
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("unsupported CORS trace version " + version);
+    }
+
+    /**
+     * @return the next record, or null at the end of the trace
+     */
+    static TraceRecord readFrom(DataInputStream in) throws IOException
+    {
+        int present = in.read();
+        if (present < 0)
+            return null;
+        String[] fields = new String[FIELDS];
+        try
+        {
+            for (int i = 0; i < FIELDS; ++i)
+            {
+                if ((present & (1 << i)) != 0)
+                    fields[i] = in.readUTF();
+            }
+        }
+        catch (EOFException x)
+        {
+            // the recorder was stopped in the middle of a record
+            return null;
+        }
+        return new TraceRecord(fields);
+    }
+}
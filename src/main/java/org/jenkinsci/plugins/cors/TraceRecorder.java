@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.cors;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.servlet.http.HttpServletRequest;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * <p>Appends a {@link TraceRecord} of each request to a trace file, for
+ * replaying against other policies offline.</p>
+ *
+ * <p>Request threads only offer a record to a bounded buffer and never
+ * wait: when the buffer is full, because the disk cannot keep up, the
+ * record is dropped and counted instead. A daemon thread drains the
+ * buffer to the file, and flushes it whenever the buffer runs
+ * empty.</p>
+ */
+final class TraceRecorder
+{
+    private static final Logger LOG = Logger.getLogger("org.jenkins.ci.plugins.cors.CrossOriginFilter");
+
+    static final int BUFFER_SIZE = Integer.getInteger(TraceRecorder.class.getName() + ".bufferSize", 8192);
+
+    private final String path;
+    private final BlockingQueue<TraceRecord> buffer = new ArrayBlockingQueue<TraceRecord>(BUFFER_SIZE);
+    private final DataOutputStream out;
+    private final StripedCounter dropped = new StripedCounter();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private TraceRecorder(String path) throws IOException
+    {
+        this.path = path;
+        boolean empty = new File(path).length() == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path, true)));
+        if (empty)
+        {
+            try
+            {
+                TraceRecord.writeHeader(out);
+            }
+            catch (IOException x)
+            {
+                // the header may still be buffered, so closing can fail
+                // too; the first failure is the one worth reporting
+                try
+                {
+                    out.close();
+                }
+                catch (IOException ignored)
+                {
+                }
+                throw x;
+            }
+        }
+        this.out = out;
+        this.writer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "CORS trace writer for " + path);
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens <code>path</code> for appending, writing the trace header if
+     * the file is new, and starts the writer thread.
+     */
+    static TraceRecorder open(String path) throws IOException
+    {
+        TraceRecorder recorder = new TraceRecorder(path);
+        recorder.writer.start();
+        LOG.log(Level.INFO,"Cross-origin filter, recording requests to {0}", path);
+        return recorder;
+    }
+
+    String getPath()
+    {
+        return path;
+    }
+
+    void record(HttpServletRequest request)
+    {
+        if (closed || !buffer.offer(TraceRecord.of(request)))
+            dropped.increment();
+    }
+
+    long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    /** Stops recording, after the writer thread has written what is already buffered. */
+    void close()
+    {
+        closed = true;
+        writer.interrupt();
+    }
+
+    private void writeLoop()
+    {
+        List<TraceRecord> batch = new ArrayList<TraceRecord>();
+        try
+        {
+            while (!closed)
+            {
+                try
+                {
+                    batch.add(buffer.take());
+                }
+                catch (InterruptedException x)
+                {
+                    continue;
+                }
+                buffer.drainTo(batch);
+                write(batch);
+                if (buffer.isEmpty())
+                    out.flush();
+            }
+            buffer.drainTo(batch);
+            write(batch);
+            if (dropped.sum() > 0)
+                LOG.log(Level.INFO,"Cross-origin filter, dropped {0} records the writer could not keep up with in {1}", new Object[]{dropped.sum(), path});
+        }
+        catch (IOException x)
+        {
+            LOG.log(Level.WARNING,"Cross-origin filter, stopped recording requests to " + path, x);
+            closed = true;
+        }
+        finally
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException x)
+            {
+                LOG.log(Level.FINE,"Cross-origin filter, could not close " + path, x);
+            }
+        }
+    }
+
+    private void write(List<TraceRecord> batch) throws IOException
+    {
+        for (TraceRecord record : batch)
+            record.writeTo(out);
+        batch.clear();
+    }
+}